@@ -0,0 +1,48 @@
+package id.jred;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+
+// Scan of git log for git-svn-id, which is found after that many local
+// commits.
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class GitSvnLogBenchmark {
+    @Param({"1", "100", "1000"})
+    public int commits;
+
+    private String log;
+
+    @Setup
+    public void setup() {
+        var sb = new StringBuilder();
+        for (int i = 0; i <= commits; i++) {
+            // git log -z --format=%H%n%B
+            sb.append(String.format("%040x\n", i));
+            sb.append("Change number ").append(i).append("\n\n");
+            sb.append("Longer description of the change, one line of it.\n");
+            if (i == commits) {
+                sb.append("\ngit-svn-id: https://svn.example.com/repo/trunk@")
+                        .append(100000 + i)
+                        .append(" 0123abcd-0000-0000-0000-000000000000\n");
+            }
+            sb.append('\0');
+        }
+        log = sb.toString();
+    }
+
+    @Benchmark
+    public List<String[]> parse() {
+        return GitSvnIndex.parseLog(log);
+    }
+}
@@ -0,0 +1,69 @@
+package id.jred;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Request bodies of /diff and /copy, from 1 KB to 50 MB.
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JsonBenchmark {
+    @Param({"1024", "1048576", "52428800"})
+    public int size;
+
+    private JsonDiff diff;
+    private JsonCopy copy;
+    private byte[] diffJson;
+    private byte[] copyJson;
+
+    @Setup
+    public void setup() throws IOException {
+        var repo = new JsonRepo("repo", "0123456789abcdef0123456789abcdef01234567");
+        var text = makeText(size);
+        diff = new JsonDiff(repo, text);
+        copy = new JsonCopy(repo, "src/main/java/File.java", text);
+        diffJson = Json.mapper.writeValueAsBytes(diff);
+        copyJson = Json.mapper.writeValueAsBytes(copy);
+    }
+
+    // Looks like a diff: lines with quotes and tabs, which JSON escapes.
+    private static String makeText(int size) {
+        var line = "+\tSystem.out.println(\"value: \" + map.get(\"key\"));\n";
+        var sb = new StringBuilder(size + line.length());
+        while (sb.length() < size) {
+            sb.append(line);
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    @Benchmark
+    public void writeDiff() throws IOException {
+        Json.write(diff, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public JsonDiff readDiff() throws IOException {
+        return Json.read(JsonDiff.class, diffJson);
+    }
+
+    @Benchmark
+    public void writeCopy() throws IOException {
+        Json.write(copy, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public JsonCopy readCopy() throws IOException {
+        return Json.read(JsonCopy.class, copyJson);
+    }
+}
@@ -0,0 +1,44 @@
+package id.jred;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Env var substitution in repo_map paths on load.
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RepoMapBenchmark {
+    @Param({"100", "10000"})
+    public int repos;
+
+    private Map<String, JsonTarget> repoMap;
+
+    // Substitution rewrites paths, so every invocation gets a fresh map.
+    @Setup(Level.Invocation)
+    public void setup() {
+        repoMap = new HashMap<>();
+        for (int i = 0; i < repos; i++) {
+            var target = new JsonTarget();
+            target.setPath("${HOME}/src/repo" + i);
+            repoMap.put("repo" + i, target);
+        }
+    }
+
+    @Benchmark
+    public Map<String, JsonTarget> substitute() throws IOException {
+        RepoMap.substituteEnvVars(repoMap);
+        return repoMap;
+    }
+}
@@ -0,0 +1,61 @@
+package id.jred;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+// Overhead of running a command: new process versus shell helper. Each
+// benchmark forks its own JVM, the shell pool is global once enabled.
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ScriptBenchmark {
+    private File home;
+    private File workDir;
+
+    @Setup
+    public void setup() throws IOException {
+        home = Files.createTempDirectory("jred-bench-").toFile();
+        System.setProperty("user.home", home.getPath());
+        var scriptDir = new File(Dir.getHome(), "bench");
+        scriptDir.mkdirs();
+        Files.writeString(new File(scriptDir, "noop").toPath(), "#! /bin/bash -e\ntrue\n");
+        workDir = home;
+        if (Boolean.getBoolean("jred.bench.pool")) {
+            Script.enableShellPool(60_000);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Bench.deleteTree(home);
+    }
+
+    @Benchmark
+    public String spawnProcess() throws InterruptedException, IOException {
+        return Script.run(List.of("true"), workDir, null /* stdin */);
+    }
+
+    @Benchmark
+    public String runShellScript() throws InterruptedException, IOException {
+        return Script.runShell("bench/noop", Collections.emptyList(), workDir);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Djred.bench.pool=true")
+    public String runShellScriptPooled() throws InterruptedException, IOException {
+        return Script.runShell("bench/noop", Collections.emptyList(), workDir);
+    }
+}
@@ -0,0 +1,92 @@
+package id.jred;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Client command startup from the shadow jar, with JDK default class data
+// sharing and with the archive made by `jred update`. Jar is given in
+// jred.bench.jar or found in build/libs, jmh task builds it.
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StartupBenchmark {
+    private File home;
+    private String java;
+    private String jar;
+
+    @Setup
+    public void setup() throws InterruptedException, IOException {
+        home = Files.createTempDirectory("jred-bench-").toFile();
+        java = new File(new File(System.getProperty("java.home"), "bin"), "java").toString();
+        jar = findJar().getCanonicalPath();
+        Script.run(command(false, "update"), null /* workDir */, null /* stdin */);
+        if (!new File(home, ".jred/" + ClassDataArchive.ARCHIVE_NAME).exists()) {
+            throw new IOException("Class data archive not created");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Bench.deleteTree(home);
+    }
+
+    // Cheapest client command, only startup is measured.
+    @Benchmark
+    public String defaultSharing() throws InterruptedException, IOException {
+        return Script.run(command(false, "server", "--stop"), null, null);
+    }
+
+    @Benchmark
+    public String appArchive() throws InterruptedException, IOException {
+        return Script.run(command(true, "server", "--stop"), null, null);
+    }
+
+    // Same JVM flags as the jred launcher.
+    private List<String> command(boolean archive, String... args) {
+        var command = new ArrayList<String>();
+        command.add(java);
+        command.add("-XX:+UseG1GC");
+        if (archive) {
+            command.add("-XX:SharedArchiveFile=" +
+                    new File(home, ".jred/" + ClassDataArchive.ARCHIVE_NAME));
+        }
+        command.add("-Duser.home=" + home);
+        command.add("-jar");
+        command.add(jar);
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    private static File findJar() throws IOException {
+        var path = System.getProperty("jred.bench.jar");
+        if (path != null) {
+            return new File(path);
+        }
+        var jars = new File("build/libs").listFiles((dir, name) -> name.endsWith("-all.jar"));
+        if (jars == null || jars.length == 0) {
+            throw new IOException("Shadow jar not found, run ./gradlew shadowJar");
+        }
+        return Arrays.stream(jars).max(Comparator.comparingLong(File::lastModified)).get();
+    }
+}
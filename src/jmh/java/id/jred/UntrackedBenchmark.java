@@ -0,0 +1,77 @@
+package id.jred;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+// Listing of untracked files, as in submit: with git and parsing only.
+// Every tenth directory is ignored.
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class UntrackedBenchmark {
+    @Param({"1000", "20000"})
+    public int files;
+
+    // Files per directory
+    private static final int FANOUT = 50;
+
+    private File home;
+    private File repoDir;
+    private String output;
+
+    @Setup
+    public void setup() throws InterruptedException, IOException {
+        home = Files.createTempDirectory("jred-bench-").toFile();
+
+        repoDir = new File(home, "repo");
+        repoDir.mkdir();
+        Script.run(List.of("git", "init", "-q"), repoDir, null /* stdin */);
+        Files.writeString(new File(repoDir, ".gitignore").toPath(), "ignored/\n");
+        var sb = new StringBuilder(".gitignore\0");
+        for (int i = 0; i < files; i++) {
+            var d = i / FANOUT;
+            var path = (d % 10 == 0 ? "ignored" : "untracked") +
+                    "/d" + (d / FANOUT) + "/d" + d + "/f" + i + ".txt";
+            var f = new File(repoDir, path);
+            f.getParentFile().mkdirs();
+            Files.write(f.toPath(), new byte[0]);
+            if (d % 10 != 0) {
+                sb.append(path).append('\0');
+            }
+        }
+        output = sb.toString();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Bench.deleteTree(home);
+    }
+
+    @Benchmark
+    public List<File> list() throws InterruptedException, IOException {
+        return Script.await(UntrackedFiles.list(repoDir));
+    }
+
+    @Benchmark
+    public List<File> parse() {
+        var parser = new UntrackedFiles.Parser(repoDir);
+        // Chunks of decoded output, as the script sink writes them
+        for (int i = 0; i < output.length(); i += 8192) {
+            parser.append(output, i, Math.min(i + 8192, output.length()));
+        }
+        return parser.finish().join();
+    }
+}
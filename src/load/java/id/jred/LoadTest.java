@@ -0,0 +1,404 @@
+package id.jred;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// End-to-end load test on one box. Creates synthetic git repos, starts the
+// server in this JVM on loopback with generated repo_map, then runs
+// concurrent clients, each submitting from its own clone with its own home
+// dir. Every submit is a `jred submit` process, as developers run it.
+//
+// Latency percentiles come from client side, phase breakdown from the
+// difference of server /metrics before and after the run.
+public final class LoadTest {
+    private static final String HOST = "127.0.0.1";
+    private static final String[] WORDS = {
+        "int", "return", "value", "index", "buffer", "final", "static", "count",
+        "if", "else", "for", "while", "map", "list", "result", "error", "(", ")", "{", "}"
+    };
+
+    @Parameter(names={"--help"}, help=true)
+    private boolean help;
+
+    @Parameter(names={"-p", "--port"}, description="Server port")
+    private int port = 18040;
+
+    @Parameter(names={"--clients"}, description="Concurrent clients")
+    private int clients = 8;
+
+    @Parameter(names={"--submits"}, description="Submits per client")
+    private int submits = 10;
+
+    @Parameter(names={"--repos"}, description="Server repos, clients are spread over them")
+    private int repos = 2;
+
+    @Parameter(names={"--files"}, description="Tracked files per repo")
+    private int files = 500;
+
+    @Parameter(names={"--file-lines"}, description="Lines per tracked file")
+    private int fileLines = 200;
+
+    @Parameter(names={"--diff-lines"}, description="Lines changed before every submit")
+    private int diffLines = 50;
+
+    @Parameter(names={"--untracked-dirs"}, description="Untracked directories per level")
+    private int untrackedDirs = 4;
+
+    @Parameter(names={"--untracked-depth"}, description="Nesting of untracked directories")
+    private int untrackedDepth = 2;
+
+    @Parameter(names={"--untracked-files"}, description="Files per untracked directory")
+    private int untrackedFiles = 10;
+
+    @Parameter(names={"--untracked-size"}, description="Size of untracked file, bytes")
+    private int untrackedSize = 4096;
+
+    @Parameter(names={"--untracked-changed"}, description="Untracked files rewritten per submit")
+    private int untrackedChanged = 1;
+
+    @Parameter(names={"--seed"}, description="Random seed")
+    private long seed = 1;
+
+    @Parameter(names={"--report"}, description="JSON report path")
+    private String report = "build/reports/load/report.json";
+
+    @Parameter(names={"--keep"}, description="Keep generated repos")
+    private boolean keep = false;
+
+    private File root;
+
+    public static void main(String[] args) throws Exception {
+        var test = new LoadTest();
+        var jcmd = JCommander.newBuilder()
+                .addObject(test)
+                .programName("LoadTest")
+                .args(args)
+                .build();
+        if (test.help) {
+            jcmd.usage();
+            return;
+        }
+        test.run();
+        // Spark threads are not daemons
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        root = Files.createTempDirectory("jred-load-").toFile().getCanonicalFile();
+        System.out.println("Generating repos in " + root);
+        try {
+            // Server reads repo_map and scripts from this JVM home.
+            System.setProperty("user.home", new File(root, "server-home").getPath());
+            App.main(new String[] {"update"});
+            var repoMap = new HashMap<String, JsonTarget>();
+            for (int r = 0; r < repos; r++) {
+                var name = "repo" + r;
+                var origin = new File(root, "origin/" + name);
+                createOrigin(origin, new Random(seed + r));
+                var worktree = new File(root, "server/" + name);
+                git(root, "clone", "-q", origin.getPath(), worktree.getPath());
+                var target = new JsonTarget();
+                target.setPath(worktree.getPath());
+                repoMap.put(name, target);
+            }
+            try (var os = new FileOutputStream(new File(Dir.getHome(), "repo_map"))) {
+                Json.writeFormatted(repoMap, os);
+            }
+            var clientList = new ArrayList<Client>();
+            for (int c = 0; c < clients; c++) {
+                clientList.add(new Client(c));
+            }
+
+            PidFile.create();
+            Server.start(
+                    HOST,
+                    port,
+                    (int) TimeUnit.MINUTES.toSeconds(5),
+                    Server.DEFAULT_LIMITS);
+            var http = new Http(HOST, port, null);
+            waitForServer(http);
+
+            System.out.println(
+                    clients + " clients x " + submits + " submits to " + repos + " repos");
+            var before = scrape(http);
+            var latencies = new ConcurrentLinkedQueue<Long>();
+            var failures = new AtomicInteger();
+            var executor = Executors.newFixedThreadPool(clients);
+            var start = System.nanoTime();
+            try {
+                var futures = new ArrayList<Future<?>>();
+                for (var client : clientList) {
+                    futures.add(executor.submit(() -> {
+                        for (int i = 0; i < submits; i++) {
+                            client.change();
+                            var t0 = System.nanoTime();
+                            try {
+                                client.submit();
+                                latencies.add(System.nanoTime() - t0);
+                            } catch (IOException ex) {
+                                failures.incrementAndGet();
+                                System.err.println("Submit failed: " + ex.getMessage());
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                for (var f : futures) {
+                    f.get();
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            var elapsed = System.nanoTime() - start;
+            var after = scrape(http);
+            writeReport(new ArrayList<>(latencies), failures.get(), elapsed, before, after);
+        } finally {
+            // Server stops when pid file is gone
+            PidFile.delete();
+            if (!keep) {
+                deleteTree(root);
+            }
+        }
+    }
+
+    private final class Client {
+        final File home;
+        final File repoDir;
+        final Random random;
+        final List<File> trackedFiles = new ArrayList<>();
+        final List<File> untracked = new ArrayList<>();
+        // Content of files changed by the previous submit
+        final Map<File, byte[]> pristine = new HashMap<>();
+
+        Client(int index) throws InterruptedException, IOException {
+            var name = "repo" + (index % repos);
+            var dir = new File(root, "clients/c" + index);
+            this.home = new File(dir, "home");
+            // Repo name on server is client repo dir name
+            this.repoDir = new File(dir, name);
+            this.random = new Random(seed * 1000 + index);
+            home.mkdirs();
+            git(root, "clone", "-q", new File(root, "origin/" + name).getPath(), repoDir.getPath());
+            for (int i = 0; i < files; i++) {
+                trackedFiles.add(new File(repoDir, trackedPath(i)));
+            }
+            createUntracked(new File(repoDir, "untracked"), untrackedDepth);
+        }
+
+        private void createUntracked(File dir, int depth) throws IOException {
+            dir.mkdirs();
+            for (int i = 0; i < untrackedFiles; i++) {
+                var f = new File(dir, "u" + i + ".bin");
+                writeRandom(f);
+                untracked.add(f);
+            }
+            if (depth > 0) {
+                for (int i = 0; i < untrackedDirs; i++) {
+                    createUntracked(new File(dir, "d" + i), depth - 1);
+                }
+            }
+        }
+
+        private void writeRandom(File f) throws IOException {
+            var data = new byte[untrackedSize];
+            random.nextBytes(data);
+            Files.write(f.toPath(), data);
+        }
+
+        // Diff is always diff-lines long: files changed last time are
+        // restored first.
+        void change() throws IOException {
+            for (var e : pristine.entrySet()) {
+                Files.write(e.getKey().toPath(), e.getValue());
+            }
+            pristine.clear();
+            for (int i = 0; i < diffLines; i++) {
+                var f = trackedFiles.get(random.nextInt(trackedFiles.size()));
+                var content = Files.readAllBytes(f.toPath());
+                pristine.putIfAbsent(f, content);
+                var lines = new ArrayList<>(Arrays.asList(
+                        new String(content, StandardCharsets.UTF_8).split("\n", -1)));
+                lines.set(random.nextInt(lines.size() - 1), makeLine(random));
+                Files.write(f.toPath(), String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < untrackedChanged && !untracked.isEmpty(); i++) {
+                writeRandom(untracked.get(random.nextInt(untracked.size())));
+            }
+        }
+
+        void submit() throws InterruptedException, IOException {
+            var java = new File(System.getProperty("java.home"), "bin/java").getPath();
+            Script.run(
+                    Arrays.asList(
+                            java,
+                            "-Duser.home=" + home.getPath(),
+                            "-cp", System.getProperty("java.class.path"),
+                            App.class.getName(),
+                            "--port", Integer.toString(port),
+                            "submit"),
+                    repoDir,
+                    null /* stdin */);
+        }
+    }
+
+    private static String trackedPath(int index) {
+        return "src/m" + (index / 100) + "/File" + index + ".java";
+    }
+
+    private void createOrigin(File dir, Random random) throws InterruptedException, IOException {
+        for (int i = 0; i < files; i++) {
+            var f = new File(dir, trackedPath(i));
+            f.getParentFile().mkdirs();
+            var sb = new StringBuilder();
+            for (int l = 0; l < fileLines; l++) {
+                sb.append(makeLine(random)).append('\n');
+            }
+            Files.writeString(f.toPath(), sb, StandardCharsets.UTF_8);
+        }
+        git(dir, "init", "-q");
+        git(dir, "add", "-A");
+        git(dir, "-c", "user.name=load", "-c", "user.email=load@localhost",
+                "commit", "-q", "-m", "Initial");
+    }
+
+    private static String makeLine(Random random) {
+        var sb = new StringBuilder("    ");
+        var words = 3 + random.nextInt(8);
+        for (int i = 0; i < words; i++) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return sb.toString();
+    }
+
+    private static void git(File dir, String... args) throws InterruptedException, IOException {
+        var command = new ArrayList<String>();
+        command.add("git");
+        Collections.addAll(command, args);
+        Script.run(command, dir, null /* stdin */);
+    }
+
+    private static void waitForServer(Http http) throws InterruptedException, IOException {
+        for (int i = 0; ; i++) {
+            try {
+                http.get("/", null);
+                return;
+            } catch (IOException ex) {
+                if (i == 100) {
+                    throw ex;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    // Metric samples by name with labels.
+    private static Map<String, Double> scrape(Http http) throws IOException {
+        var samples = new HashMap<String, Double>();
+        var text = new String(http.get("/metrics", null), StandardCharsets.UTF_8);
+        for (var line : text.split("\n")) {
+            var space = line.lastIndexOf(' ');
+            if (line.startsWith("#") || space < 0) {
+                continue;
+            }
+            samples.put(line.substring(0, space), Double.parseDouble(line.substring(space + 1)));
+        }
+        return samples;
+    }
+
+    private void writeReport(
+            List<Long> latencies,
+            int failures,
+            long elapsedNanos,
+            Map<String, Double> before,
+            Map<String, Double> after) throws IOException {
+        Collections.sort(latencies);
+        var seconds = elapsedNanos / 1e9;
+        var result = new LinkedHashMap<String, Object>();
+        result.put("clients", clients);
+        result.put("repos", repos);
+        result.put("submits", latencies.size());
+        result.put("failures", failures);
+        result.put("seconds", round(seconds));
+        result.put("submitsPerSecond", round(latencies.size() / seconds));
+        var latency = new LinkedHashMap<String, Object>();
+        latency.put("p50", percentileMillis(latencies, 50));
+        latency.put("p90", percentileMillis(latencies, 90));
+        latency.put("p99", percentileMillis(latencies, 99));
+        latency.put("max", percentileMillis(latencies, 100));
+        result.put("latencyMillis", latency);
+
+        // Server phases: every duration histogram, by label
+        var phases = new TreeMap<String, Object>();
+        for (var e : after.entrySet()) {
+            var key = e.getKey();
+            var at = key.indexOf("_duration_seconds_sum");
+            if (at < 0) {
+                continue;
+            }
+            var countKey = key.replace("_duration_seconds_sum", "_duration_seconds_count");
+            var count = after.getOrDefault(countKey, 0.0) - before.getOrDefault(countKey, 0.0);
+            if (count == 0) {
+                continue;
+            }
+            var sum = e.getValue() - before.getOrDefault(key, 0.0);
+            var phase = new LinkedHashMap<String, Object>();
+            phase.put("count", (long) count);
+            phase.put("meanMillis", round(sum * 1000 / count));
+            phase.put("totalSeconds", round(sum));
+            phases.put(key.substring(0, at) + key.substring(at + "_duration_seconds_sum".length()),
+                    phase);
+        }
+        result.put("serverPhases", phases);
+
+        var reportFile = new File(report);
+        reportFile.getAbsoluteFile().getParentFile().mkdirs();
+        try (var os = new FileOutputStream(reportFile)) {
+            Json.writeFormatted(result, os);
+        }
+        System.out.println(Json.mapper.writerWithDefaultPrettyPrinter().writeValueAsString(result));
+        System.out.println("Report written to " + reportFile.getAbsolutePath());
+    }
+
+    // Nearest rank.
+    private static double percentileMillis(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        var rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+        return round(sorted.get(Math.max(rank, 1) - 1) / 1e6);
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    private static void deleteTree(File dir) {
+        var children = dir.listFiles();
+        if (children != null) {
+            for (var c : children) {
+                deleteTree(c);
+            }
+        }
+        dir.delete();
+    }
+}
@@ -5,35 +5,47 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.beust.jcommander.Parameters;
-import com.fasterxml.jackson.core.type.TypeReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 public final class App {
     private static final Logger LOG = LoggerFactory.getLogger("jred");
 
-    private static final Pattern regexCommit = Pattern.compile("^commit ([0-9a-f]+)");
-    private static final Pattern regexGitSvnId = Pattern.compile("^\\s+git-svn-id: (.+)@([0-9]+) ");
+    private static final long LARGE_FILE_SIZE = 1 << 20;
+    private static final long CHUNKED_FILE_SIZE = 16 << 20;
+    private static final long CHUNK_SIZE = 4 << 20;
+    // Rounds to query missing chunks and send them. One more query checks
+    // that the last round completed the files.
+    private static final int MAX_UPLOAD_ROUNDS = 3;
+
+    // Watch mode waits for this long pause in changes, but not longer than
+    // max delay since the first change.
+    private static final long WATCH_QUIET_MILLIS = 50;
+    private static final long WATCH_MAX_DELAY_MILLIS = 300;
+    // Poll of submit job, server caps it to a few seconds
+    private static final long JOB_POLL_SECONDS = 5;
 
     public static void main(String[] args) {
         try {
@@ -50,6 +62,41 @@ public final class App {
             names={"-s", "--stop"},
             description="Stop running server")
         private boolean stop = false;
+
+        @Parameter(
+            names={"--helper-idle"},
+            description="Seconds to keep idle shell helpers, 0 to run every script in new process")
+        private int helperIdleSeconds = 300;
+
+        @Parameter(
+            names={"--max-threads"},
+            description="Server worker threads")
+        private int maxThreads = Server.DEFAULT_LIMITS.maxThreads;
+
+        @Parameter(
+            names={"--max-requests"},
+            description="Requests handled at once, more are answered 503; less than threads")
+        private int maxRequests = Server.DEFAULT_LIMITS.maxRequests;
+
+        @Parameter(
+            names={"--max-jobs"},
+            description="Queued async submits of all repos, more are answered 503")
+        private int maxJobs = Server.DEFAULT_LIMITS.maxJobs;
+
+        @Parameter(
+            names={"--max-applies"},
+            description="Resets and applies running at once, over all repos")
+        private int maxApplies = Server.DEFAULT_LIMITS.maxApplies;
+
+        @Parameter(
+            names={"--max-repo-applies"},
+            description="Resets and applies running at once in worktrees of one repo")
+        private int maxRepoApplies = Server.DEFAULT_LIMITS.maxRepoApplies;
+
+        @Parameter(
+            names={"--max-body-mb"},
+            description="Request body limit in MiB, before and after decoding")
+        private long maxBodyMiB = Server.DEFAULT_LIMITS.maxBodySize >> 20;
     }
 
     public static final class VCSValidator implements IValueValidator<String> {
@@ -65,6 +112,17 @@ public final class App {
         }
     }
 
+    public static final class CodecValidator implements IValueValidator<String> {
+        @Override
+        public void validate(String name, String value)
+                throws ParameterException {
+            if (!Codecs.NONE.equals(value) && Codecs.get(value) == null) {
+                throw new ParameterException(
+                        "Codec must be one of: none, " + Codecs.allNamesAsString());
+            }
+        }
+    }
+
     @Parameters(separators="=", commandDescription="Submit files and diff")
     private static final class CommandSubmit {
         @Parameter(
@@ -75,8 +133,23 @@ public final class App {
 
         @Parameter(
             names={"--log"},
-            description="Max log length to find git-svn-id")
+            description="Commits to read at once to find git-svn-id, doubles as needed")
         private int logLength = 10;
+
+        @Parameter(
+            names={"-j", "--jobs"},
+            description="Parallel uploads of large files")
+        private int jobs = 4;
+
+        @Parameter(
+            names={"-w", "--watch"},
+            description="Keep running and submit changes as they happen")
+        private boolean watch = false;
+
+        @Parameter(
+            names={"--timings"},
+            description="Print time of submit phases, on client and server")
+        private boolean timings = false;
     }
 
     @Parameters(separators="=", commandDescription="Update home dir files")
@@ -87,6 +160,11 @@ public final class App {
     private final CommandServer cmdServer = new CommandServer();
     private final CommandSubmit cmdSubmit = new CommandSubmit();
     private final CommandUpdate cmdUpdate = new CommandUpdate();
+    private final HashCache hashCache = new HashCache();
+    // One per run, so watch mode reads refs again only when they change
+    private final RevisionProvider revisionProvider = new RevisionProvider();
+    // Created on first GITSVN submit
+    private GitSvnIndex gitSvnIndex;
 
     @Parameter(names={"--help"}, help=true)
     private boolean help;
@@ -101,6 +179,12 @@ public final class App {
         description="Port to connect/listen")
     private int port = 8040;
 
+    @Parameter(
+        names={"--compress"},
+        description="Request compression codec or none",
+        validateValueWith=CodecValidator.class)
+    private String compress = GzipCodec.NAME;
+
     private App(String[] args) {
         this.jcmd = JCommander.newBuilder()
             .addObject(this)
@@ -125,7 +209,8 @@ public final class App {
             return;
         }
 
-        if (Dir.createHome()) {
+        // Update command does it anyway
+        if (Dir.createHome() && !"update".equals(jcmd.getParsedCommand())) {
             update();
         }
 
@@ -146,7 +231,7 @@ public final class App {
         }
     }
 
-    private void server() throws IOException {
+    private void server() throws InterruptedException, IOException {
         ProcessHandle ph = PidFile.read();
         if (ph != null && ph.isAlive()) {
             System.out.println("Server is running, pid=" + ph.pid());
@@ -154,37 +239,13 @@ public final class App {
         }
         var pid = PidFile.create();
         try {
-            LOG.debug("Reading repo_map");
-            Map<String, JsonTarget> repoMap = Json.mapper.readValue(
-                    new File(Dir.getHome(), "repo_map"),
-                    new TypeReference<HashMap<String, JsonTarget>>() {});
-
-            LOG.debug("Substitute env vars");
-            substituteEnvVars(repoMap);
-
-            // Ensure repo map is correct
-            for (var r : repoMap.values()) {
-                var vcs = VCS.fromCmdLineString(r.getVCS());
-                switch (vcs) {
-                case GIT: {
-                    var vcsDir = "." + vcs.toCmdLineString();
-                    if (!new File(new File(r.getPath()), vcsDir).exists()) {
-                        throw ioException("git repo not found in {0}", r.getPath());
-                    }
-                }
-                case SVN: {
-                    if (!new File(r.getPath()).exists()) {
-                        throw ioException("svn repo not found in {0}", r.getPath());
-                    }
-                    break;
-                }
-                default:
-                    throw ioException("Unsupported VCS: {0}", vcs);
-                }
-            }
-
-            LOG.debug("Start server host={} port={}", host, port);
-            Handlers.start(host, port, repoMap);
+            Server.start(host, port, cmdServer.helperIdleSeconds, new Server.Limits(
+                    cmdServer.maxThreads,
+                    cmdServer.maxRequests,
+                    cmdServer.maxJobs,
+                    cmdServer.maxApplies,
+                    cmdServer.maxRepoApplies,
+                    cmdServer.maxBodyMiB << 20));
         } catch (IOException ex) {
             PidFile.delete();
             throw ex;
@@ -194,28 +255,6 @@ public final class App {
                 " port=" + port);
     }
 
-    private static void substituteEnvVars(Map<String, JsonTarget> repoMap) throws IOException {
-        var pattern = Pattern.compile("\\$\\{(.+?)}");
-        var env = System.getenv();
-        for (var r : repoMap.values()) {
-            var matcher = pattern.matcher(r.getPath());
-            var error = new String[1];
-            var subst = matcher.replaceAll(m -> {
-                var g = m.group(1);
-                if (env.containsKey(g)) {
-                    return env.get(g);
-                }
-                if (error[0] == null) error[0] = g;
-                return "";
-            });
-            if (error[0] != null) {
-                // IO error because path is not valid
-                throw ioException("Unknown env variable: {0}", error[0]);
-            }
-            r.setPath(subst);
-        }
-    }
-
     private void stopServer() {
         ProcessHandle ph = PidFile.read();
         if (ph != null) {
@@ -241,65 +280,362 @@ public final class App {
         if (!(vcs == VCS.GIT || vcs == VCS.GITSVN)) {
             throw new IllegalArgumentException("Unsupported VCS: " + vcs);
         }
+        if (cmdSubmit.jobs <= 0) {
+            throw new IllegalArgumentException("Invalid number of jobs");
+        }
         LOG.debug("Submit to host={} port={}", host, port);
         var repoDir = Dir.getParentWithFile(Dir.getCurrent(), ".git");
         if (repoDir == null) {
             throw ioException(".git not found in {0} or parent", Dir.getCurrent());
         }
         LOG.debug("Repo dir {}", repoDir.toString());
-        var revision = getDiffBaseRevision(vcs, repoDir);
+        var http = new Http(host, port, getCodec(), getClientId());
+        var start = System.nanoTime();
+        var timings = new Timings("submit");
+        // Untracked files do not depend on revision, listed along with diff.
+        var untracked = UntrackedFiles.list(repoDir);
+        String[] revision;
+        try (var phase = timings.start("revision")) {
+            revision = getDiffBaseRevision(vcs, repoDir);
+        }
+        String diff;
+        try (var phase = timings.start("diff")) {
+            diff = Script.await(runDiff(repoDir, revision));
+        }
+        List<File> untrackedFiles;
+        try (var phase = timings.start("status")) {
+            untrackedFiles = Script.await(untracked);
+        }
+        submit(http, repoDir, revision, diff, untrackedFiles, timings);
+        printTimings(timings, start);
+        if (cmdSubmit.watch) {
+            watch(vcs, http, repoDir, revision, diff);
+        }
+    }
+
+    // Submits changes as files are saved. If diff did not change, only
+    // changed untracked files are sent, otherwise it is a full submit.
+    // Files git ignores are not watched.
+    private void watch(VCS vcs, Http http, File repoDir, String[] sentRevision, String sentDiff)
+            throws InterruptedException, IOException {
+        try (var watcher = new RepoWatcher(repoDir)) {
+            System.out.println("Watching " + repoDir + ", Ctrl-C to stop");
+            while (true) {
+                var changed = watcher.take(WATCH_QUIET_MILLIS, WATCH_MAX_DELAY_MILLIS);
+                LOG.debug("{} files changed", changed.size());
+                try {
+                    var start = System.nanoTime();
+                    var timings = new Timings("watch");
+                    var untracked = UntrackedFiles.list(repoDir);
+                    String[] revision;
+                    try (var phase = timings.start("revision")) {
+                        revision = getDiffBaseRevision(vcs, repoDir);
+                    }
+                    String diff;
+                    try (var phase = timings.start("diff")) {
+                        diff = Script.await(runDiff(repoDir, revision));
+                    }
+                    List<File> untrackedFiles;
+                    try (var phase = timings.start("status")) {
+                        untrackedFiles = Script.await(untracked);
+                    }
+                    if (!Arrays.equals(revision, sentRevision) || !diff.equals(sentDiff)) {
+                        submit(http, repoDir, revision, diff, untrackedFiles, timings);
+                        sentRevision = revision;
+                        sentDiff = diff;
+                        System.out.println("Submitted diff");
+                        printTimings(timings, start);
+                        continue;
+                    }
+                    var repo = new JsonRepo(repoDir.getName(), revision[0]);
+                    var count = 0;
+                    for (var f : untrackedFiles) {
+                        if (changed.contains(f) && f.isFile()) {
+                            http.put(buildFilePath("/files/", repo, repoDir, f), f);
+                            count++;
+                        }
+                    }
+                    if (count > 0) {
+                        System.out.println("Submitted " + count + " files");
+                    }
+                } catch (IOException ex) {
+                    // Server can be restarted, keep watching.
+                    System.err.println("Submit failed: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    private void submit(
+            Http http,
+            File repoDir,
+            String[] revision,
+            String diff,
+            List<File> untrackedFiles,
+            Timings timings) throws InterruptedException, IOException {
         LOG.debug("Revision to send: {}, base revision: {}",
                   revision[0],
                   revision[1]);
         var repo = new JsonRepo(repoDir.getName(), revision[0]);
         LOG.debug("Repo: name={} revision={}", repo.getName(), repo.getRevision());
 
-        // First, send diff, because it does reset.
-        var diff = Script.runShell("git/diff", Arrays.asList(revision[1]), repoDir);
-        post(buildUrl("/diff"), new JsonDiff(repo, diff));
-
-        // After, send untracked files
-        var status = Script.runShell(
-                "git/status", // Do not replace with VCS - could be GITSVN.
-                Collections.emptyList(),
-                repoDir).split("\n");
-        var untrackedFiles = new ArrayList<File>();
-        for (var s : status) {
-            if (s.length() >= 3 && "??".equals(s.substring(0, 2))) {
-                var path = new File(repoDir, s.substring(3)).getCanonicalFile();
-                if (path.isDirectory()) {
-                    var stack = new ArrayList<File>();
-                    stack.add(path);
-                    while (!stack.isEmpty()) {
-                        var dirFiles = stack.remove(stack.size() - 1).listFiles();
-                        if (dirFiles != null)
-                        {
-                            for (var f : dirFiles) {
-                                if (f.isDirectory()) {
-                                    stack.add(f);
-                                } else {
-                                    untrackedFiles.add(f);
-                                }
-                            }
+        LOG.debug("{} untracked files", untrackedFiles.size());
+
+        // Server replies which files it does not have already.
+        List<JsonFileInfo> fileInfos;
+        try (var phase = timings.start("hash")) {
+            fileInfos = buildManifest(repoDir, untrackedFiles);
+        }
+        JsonManifest manifest;
+        try (var phase = timings.start("manifest")) {
+            manifest = Json.read(JsonManifest.class, http.post(
+                    "/manifest",
+                    new JsonManifest(repo, fileInfos)));
+        }
+        var changedFiles = new HashMap<String, JsonFileInfo>();
+        for (var f : manifest.getFiles()) {
+            changedFiles.put(f.getFile(), f);
+        }
+        untrackedFiles.removeIf(f -> !changedFiles.containsKey(getRelativePath(repoDir, f)));
+        LOG.debug("{} untracked files to send", untrackedFiles.size());
+
+        // Large files are sent raw after the bundle, small ones in it.
+        var bundleFiles = new ArrayList<File>();
+        var largeFiles = new ArrayList<File>();
+        for (var f : untrackedFiles) {
+            if (f.length() >= LARGE_FILE_SIZE) {
+                largeFiles.add(f);
+            } else {
+                bundleFiles.add(f);
+            }
+        }
+
+        // Diff goes first in the bundle, because it does reset. If server
+        // has the diff we sent last time, send delta against it.
+        var sentDiffFile = getSentDiffFile(repo);
+        var header = new JsonDiff(repo, diff);
+        if (sentDiffFile.exists()) {
+            try (var phase = timings.start("delta")) {
+                var sentDiff = Files.readString(sentDiffFile.toPath(), StandardCharsets.UTF_8);
+                var delta = Delta.compute(sentDiff, diff);
+                if (Delta.getSize(delta) < diff.length()) {
+                    var base = Hash.sha256(sentDiff.getBytes(StandardCharsets.UTF_8));
+                    header = new JsonDiff(repo, base, delta);
+                    LOG.debug("Sending delta, {} ops", delta.size());
+                }
+            }
+        }
+        JsonStatus job;
+        try (var phase = timings.start("send")) {
+            try {
+                job = postBundle(http, header, repoDir, bundleFiles);
+            } catch (Http.StatusException ex) {
+                if (ex.getStatus() != 409 || header.getDelta() == null) {
+                    throw ex;
+                }
+                LOG.debug("Delta rejected: {}", ex.getMessage());
+                header = new JsonDiff(repo, diff);
+                job = postBundle(http, header, repoDir, bundleFiles);
+            }
+        }
+
+        // Server applies the diff meanwhile.
+        try (var phase = timings.start("upload")) {
+            uploadLargeFiles(http, repo, repoDir, largeFiles, changedFiles);
+        }
+        JsonStatus result;
+        try {
+            try (var phase = timings.start("wait")) {
+                result = awaitJob(http, job);
+            }
+        } catch (Http.StatusException ex) {
+            if (ex.getStatus() != 409 || header.getDelta() == null) {
+                throw ex;
+            }
+            // Base changed after the request was checked. Reset of full
+            // diff can remove large files, so they are sent again.
+            LOG.debug("Delta rejected by job: {}", ex.getMessage());
+            try (var phase = timings.start("resend")) {
+                result = awaitJob(
+                        http,
+                        postBundle(http, new JsonDiff(repo, diff), repoDir, bundleFiles));
+                uploadLargeFiles(http, repo, repoDir, largeFiles, changedFiles);
+            }
+        }
+        timings.addAll("server.", result.getTimings());
+        sentDiffFile.getParentFile().mkdirs();
+        Files.writeString(sentDiffFile.toPath(), diff, StandardCharsets.UTF_8);
+        if (result.getPath() != null) {
+            System.out.println("Applied in " + result.getPath());
+        }
+    }
+
+    // Files are sent by --jobs parallel requests, files over chunked size
+    // are split in chunks. Chunks server has already are not sent again.
+    private void uploadLargeFiles(
+            Http http,
+            JsonRepo repo,
+            File repoDir,
+            List<File> files,
+            Map<String, JsonFileInfo> fileInfos) throws InterruptedException, IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        var executor = Executors.newFixedThreadPool(cmdSubmit.jobs);
+        try {
+            var futures = new ArrayList<Future<?>>();
+            var chunkedFiles = new ArrayList<File>();
+            for (var f : files) {
+                if (f.length() >= CHUNKED_FILE_SIZE) {
+                    chunkedFiles.add(f);
+                } else {
+                    var path = buildFilePath("/files/", repo, repoDir, f);
+                    futures.add(executor.submit(() -> http.put(path, f)));
+                }
+            }
+            for (int round = 0; !chunkedFiles.isEmpty(); round++) {
+                var incomplete = new ArrayList<File>();
+                for (var f : chunkedFiles) {
+                    var path = buildFilePath("/chunks/", repo, repoDir, f);
+                    var info = fileInfos.get(getRelativePath(repoDir, f));
+                    var query = "size=" + info.getSize() + "&sha256=" + info.getSHA256();
+                    var state = Json.read(JsonChunks.class, http.get(path, query));
+                    if (state.isComplete()) {
+                        continue;
+                    }
+                    if (round == MAX_UPLOAD_ROUNDS) {
+                        throw ioException("Upload of {0} is not complete", f);
+                    }
+                    incomplete.add(f);
+                    for (var range : getMissingRanges(state, info.getSize())) {
+                        for (var offset = range[0]; offset < range[1]; offset += CHUNK_SIZE) {
+                            var chunkOffset = offset;
+                            var chunkLength = Math.min(CHUNK_SIZE, range[1] - offset);
+                            futures.add(executor.submit(() -> http.put(
+                                    path,
+                                    query + "&offset=" + chunkOffset,
+                                    f,
+                                    chunkOffset,
+                                    chunkLength)));
                         }
                     }
-                } else {
-                    untrackedFiles.add(path);
                 }
+                waitAll(futures);
+                LOG.debug("Upload round {}: {} chunked files", round, incomplete.size());
+                chunkedFiles = incomplete;
             }
+            waitAll(futures);
+        } finally {
+            executor.shutdownNow();
         }
+    }
 
-        LOG.debug("{} untracked files", untrackedFiles.size());
-        for (var f : untrackedFiles) {
-            String data;
-            try (var stream = new FileInputStream(f)) {
-                data = new String(stream.readAllBytes());
+    private static List<long[]> getMissingRanges(JsonChunks state, long size) {
+        var missing = new ArrayList<long[]>();
+        var position = 0L;
+        for (var r : state.getRanges()) {
+            if (r[0] > position) {
+                missing.add(new long[]{position, r[0]});
+            }
+            position = Math.max(position, r[1]);
+        }
+        if (position < size) {
+            missing.add(new long[]{position, size});
+        }
+        return missing;
+    }
+
+    private static void waitAll(List<Future<?>> futures)
+            throws InterruptedException, IOException {
+        try {
+            for (var f : futures) {
+                f.get();
             }
-            post(buildUrl("/copy"), new JsonCopy(
-                    repo,
-                    repoDir.toPath().relativize(f.toPath()).toString(),
-                    data));
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            futures.clear();
+        }
+    }
+
+    // Job id is null if server applied it in request.
+    private static JsonStatus postBundle(Http http, JsonDiff header, File repoDir, List<File> files)
+            throws IOException {
+        var size = header.getDelta() != null
+                ? Delta.getSize(header.getDelta())
+                : header.getDiff().length();
+        for (var f : files) {
+            size += f.length();
         }
+        return Json.read(JsonStatus.class, http.post(
+                "/submit",
+                "async=true",
+                MimeType.BUNDLE,
+                size,
+                os -> Bundle.write(os, header, repoDir, files)));
+    }
+
+    // Polls until job ends, returns its result. Job errors are thrown as
+    // status exceptions.
+    private static JsonStatus awaitJob(Http http, JsonStatus status) throws IOException {
+        while (status.getJob() != null) {
+            status = Json.read(JsonStatus.class, http.get(
+                    "/jobs/" + status.getJob(),
+                    "timeout=" + JOB_POLL_SECONDS));
+        }
+        return status;
+    }
+
+    // Client phases in order, then phases server reported. Server ones
+    // overlap send, upload and wait, the rest of those is network.
+    private void printTimings(Timings timings, long start) {
+        if (!cmdSubmit.timings) {
+            return;
+        }
+        System.out.println("Timings, ms:");
+        timings.get().forEach((phase, ms) -> System.out.printf("  %-16s %6d%n", phase, ms));
+        System.out.printf(
+                "  %-16s %6d%n",
+                "total",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    // Last diff server acknowledged, per server and repo.
+    private File getSentDiffFile(JsonRepo repo) {
+        var server = (host + "_" + port).replaceAll("[^A-Za-z0-9._-]", "_");
+        var name = repo.getName().replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(new File(new File(Dir.getHome(), "sent"), server), name + ".diff");
+    }
+
+    // Hashes are cached, so in watch mode only changed files are read.
+    private List<JsonFileInfo> buildManifest(File repoDir, List<File> files)
+            throws IOException {
+        try {
+            return files.parallelStream().map(f -> {
+                try {
+                    var sha256 = hashCache.sha256(f);
+                    // Null if deleted since status
+                    return sha256 != null
+                            ? new JsonFileInfo(getRelativePath(repoDir, f), f.length(), sha256)
+                            : null;
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }).filter(Objects::nonNull).collect(Collectors.toList());
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private static String getRelativePath(File repoDir, File file) {
+        return repoDir.toPath().relativize(file.toPath()).toString();
+    }
+
+    private static CompletableFuture<String> runDiff(File repoDir, String[] revision) {
+        return Script.runShellAsync("git/diff", Arrays.asList(revision[1]), repoDir);
     }
 
     // Returns two strings:
@@ -309,99 +645,78 @@ public final class App {
             throws InterruptedException, IOException {
         switch (vcs) {
         case GIT: {
-            var gitRevision = Script.runShell(
-                    vcs.toCmdLineString() + "/revision",
-                    Collections.emptyList(),
-                    repoDir).trim();
+            var gitRevision = revisionProvider.getRevision(vcs, repoDir);
             return new String[]{gitRevision, gitRevision};
         }
         case GITSVN: {
             if (cmdSubmit.logLength <= 0) {
                 throw new IllegalArgumentException("Invalid log length");
             }
-            var output = Script.run(
-                    Arrays.asList("git", "log", "-" + cmdSubmit.logLength),
-                    repoDir,
-                    null /* stdin */);
-            String gitRevision = null;
-            String gitSvnId = null;
-            for (var s : output.split("\n")) {
-                var gitCommitMatcher = regexCommit.matcher(s);
-                if (gitCommitMatcher.find()) {
-                    gitRevision = gitCommitMatcher.group(1);
-                } else {
-                    var gitSvnIdMatcher = regexGitSvnId.matcher(s);
-                    if (gitSvnIdMatcher.find()) {
-                        gitSvnId = gitSvnIdMatcher.group(2);
-                        break;
-                    }
-                }
-            }
-            if (gitSvnId == null || gitRevision == null) {
-                throw ioException("git-svn-id not found");
+            if (gitSvnIndex == null) {
+                gitSvnIndex = new GitSvnIndex(repoDir, cmdSubmit.logLength);
             }
-            return new String[]{gitSvnId, gitRevision};
+            // Known HEAD is resolved without running git.
+            var gitRevision = revisionProvider.getRevision(VCS.GIT, repoDir);
+            return gitSvnIndex.resolve(gitRevision);
         }
         default:
             throw new IllegalArgumentException("Submit on SVN repo is not supported");
         }
     }
 
-    private void update() throws IOException {
+    private Codec getCodec() {
+        return Codecs.NONE.equals(compress) ? null : Codecs.get(compress);
+    }
+
+    // Random id, made on first submit. Server keeps worktree of pool for
+    // the client by it.
+    private static String getClientId() throws IOException {
+        var file = new File(Dir.getHome(), "client_id");
+        if (file.exists()) {
+            return Files.readString(file.toPath(), StandardCharsets.UTF_8).trim();
+        }
+        var id = UUID.randomUUID().toString();
+        Files.writeString(file.toPath(), id + "\n", StandardCharsets.UTF_8);
+        return id;
+    }
+
+    private void update() throws InterruptedException, IOException {
         copyScripts(App.class.getClassLoader(), "git");
         copyScripts(App.class.getClassLoader(), "gitsvn");
         copyScripts(App.class.getClassLoader(), "svn");
         System.out.println("Home dir updated");
-    }
-
-    private URL buildUrl(String path) throws IOException {
+        // Only makes startup faster, app works without it.
         try {
-            return new URI(
-                    "http",
-                    null,
-                    host,
-                    port,
-                    path,
-                    null,
-                    null).toURL();
-        } catch (URISyntaxException ex) {
-            throw new IOException("Invalid URI: " + ex.getMessage());
-        }
-    }
-
-    private static byte[] post(URL url, Object request) throws IOException {
-        LOG.debug("POST to {}", url.toString());
-        HttpURLConnection connection = null;
-        try {
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", MimeType.JSON);
-            connection.setRequestProperty("Accept", MimeType.JSON);
-            connection.setDoInput(true);
-            connection.setDoOutput(true);
-            LOG.debug("POST: writing payload");
-            try (var os = connection.getOutputStream()) {
-                Json.write(request, os);
-            }
-            LOG.debug("POST: reading response");
-            try (var is = connection.getInputStream()) {
-                return is.readAllBytes();
+            if (ClassDataArchive.update()) {
+                System.out.println("Class data archive updated");
             }
         } catch (IOException ex) {
-            LOG.debug("POST: IO exception {}", ex.getMessage());
-            try (var es = connection.getErrorStream()) {
-                String msg;
-                if (es != null) {
-                    msg = Json.read(JsonStatus.class, es).getMessage();
-                } else {
-                    msg = "HTTP error code: " + connection.getResponseCode();
-                }
-                throw new IOException(msg, ex);
-            }
-        } finally {
-            if (connection != null) {
-                LOG.debug("POST: disconnect");
-                connection.disconnect();
+            System.err.println("Class data archive not updated: " + ex.getMessage());
+        }
+    }
+
+    private static String buildFilePath(String prefix, JsonRepo repo, File repoDir, File file) {
+        var relativePath = repoDir.toPath().relativize(file.toPath());
+        var path = new StringBuilder(prefix);
+        appendEscaped(path, repo.getName());
+        for (var p : relativePath) {
+            path.append('/');
+            appendEscaped(path, p.toString());
+        }
+        return path.toString();
+    }
+
+    // Escapes everything except unreserved URI characters, so URI keeps
+    // escapes and names with '%', '?' or '#' survive.
+    private static void appendEscaped(StringBuilder sb, String segment) {
+        for (var b : segment.getBytes(StandardCharsets.UTF_8)) {
+            var c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                    c == '-' || c == '.' || c == '_' || c == '~') {
+                sb.append(c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
             }
         }
     }
@@ -410,7 +725,7 @@ public final class App {
         var destPath = new File(Dir.getHome(), dirName);
         destPath.mkdir();
         var prefix = dirName + "/";
-        for (var a : new String[]{"apply", "diff", "reset", "revision", "status"}) {
+        for (var a : new String[]{"apply", "diff", "reset", "revision"}) {
             var qualifiedName = prefix + a;
             try (var is = cl.getResourceAsStream(qualifiedName)) {
                 if (is != null) {
@@ -420,6 +735,13 @@ public final class App {
                 }
             }
         }
+        // Left by older versions, untracked files are listed without scripts
+        for (var a : new String[]{"status", "untracked"}) {
+            var stale = new File(destPath, a);
+            if (stale.exists() && !stale.delete()) {
+                throw ioException("Failed to delete {0}", stale);
+            }
+        }
     }
 
     private static IOException ioException(String format, Object... arguments) {
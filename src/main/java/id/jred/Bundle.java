@@ -0,0 +1,107 @@
+package id.jred;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.text.MessageFormat;
+import java.util.List;
+
+// Submit bundle: diff and untracked files in one stream. Layout:
+//   int magic "JRB1"
+//   int header length, header bytes (JsonDiff)
+//   for every file: UTF path (relative to repo), long size, size bytes
+//   UTF "" as end marker
+// Both sides stream it, so no file is held in memory as a whole.
+public final class Bundle {
+    private static final int MAGIC = 0x4a524231;
+    private static final int MAX_HEADER_SIZE = 1 << 30;
+
+    private Bundle() {}
+
+    public static void write(OutputStream os, JsonDiff header, File repoDir, List<File> files)
+            throws IOException {
+        var out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        var headerBytes = Json.mapper.writeValueAsBytes(header);
+        out.writeInt(headerBytes.length);
+        out.write(headerBytes);
+        for (var f : files) {
+            try (var channel = new FileInputStream(f).getChannel()) {
+                // Size is fixed when file is opened, late appends are not sent.
+                var size = channel.size();
+                out.writeUTF(repoDir.toPath().relativize(f.toPath()).toString());
+                out.writeLong(size);
+                out.flush();
+                var target = Channels.newChannel(os);
+                var sent = 0L;
+                while (sent < size) {
+                    var n = channel.transferTo(sent, size - sent, target);
+                    if (n <= 0) {
+                        throw new IOException("File truncated while sending: " + f);
+                    }
+                    sent += n;
+                }
+            }
+        }
+        out.writeUTF("");
+        out.flush();
+    }
+
+    public static final class Reader {
+        private final DataInputStream in;
+        private long remaining;
+
+        public Reader(InputStream is) {
+            this.in = new DataInputStream(is);
+        }
+
+        public JsonDiff readHeader() throws IOException {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Invalid bundle");
+            }
+            var length = in.readInt();
+            if (length < 0 || length > MAX_HEADER_SIZE) {
+                throw new IOException("Invalid bundle header size: " + length);
+            }
+            var headerBytes = new byte[length];
+            in.readFully(headerBytes);
+            return Json.read(JsonDiff.class, headerBytes);
+        }
+
+        // Returns next file path or null at the end. Data of the previous
+        // file must be consumed with copyFile before calling it again.
+        public String nextFile() throws IOException {
+            if (remaining != 0) {
+                throw new IllegalStateException("Previous file not consumed");
+            }
+            var path = in.readUTF();
+            if (path.isEmpty()) {
+                return null;
+            }
+            remaining = in.readLong();
+            if (remaining < 0) {
+                throw new IOException(MessageFormat.format(
+                        "Invalid size of {0}: {1}", path, remaining));
+            }
+            return path;
+        }
+
+        public void copyFile(OutputStream os) throws IOException {
+            var buffer = new byte[64 * 1024];
+            while (remaining > 0) {
+                var n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    throw new EOFException("Bundle truncated");
+                }
+                os.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+}
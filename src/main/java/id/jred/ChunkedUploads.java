@@ -0,0 +1,165 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+// Server side of chunked uploads. Chunks are written into a hidden part
+// file next to the destination, so it can be renamed atomically when all
+// ranges are received. Part file is named by upload, other writes of the
+// destination use their own. State is kept in memory: an interrupted
+// upload resumes while server runs.
+public final class ChunkedUploads {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    private static final long EXPIRE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    public interface Publisher {
+        // Moves complete part file in place.
+        void publish(File part, File dest) throws InterruptedException, IOException;
+    }
+
+    private static final class Upload {
+        final File part;
+        final long size;
+        final String sha256;
+        // Start to end of received ranges, merged
+        final TreeMap<Long, Long> ranges = new TreeMap<>();
+        long lastUsed = System.currentTimeMillis();
+
+        Upload(File part, long size, String sha256) {
+            this.part = part;
+            this.size = size;
+            this.sha256 = sha256;
+        }
+
+        boolean matches(long size, String sha256) {
+            return this.size == size && this.sha256.equals(sha256);
+        }
+
+        void add(long start, long end) {
+            var before = ranges.floorEntry(start);
+            if (before != null && before.getValue() >= start) {
+                start = before.getKey();
+                end = Math.max(end, before.getValue());
+            }
+            var after = ranges.ceilingEntry(start);
+            while (after != null && after.getKey() <= end) {
+                end = Math.max(end, after.getValue());
+                ranges.remove(after.getKey());
+                after = ranges.ceilingEntry(start);
+            }
+            ranges.put(start, end);
+        }
+
+        boolean isComplete() {
+            return ranges.size() == 1 && ranges.firstKey() == 0 && ranges.firstEntry().getValue() == size;
+        }
+
+        JsonChunks toJson() {
+            var list = new ArrayList<long[]>();
+            for (var r : ranges.entrySet()) {
+                list.add(new long[]{r.getKey(), r.getValue()});
+            }
+            return new JsonChunks(list, false);
+        }
+    }
+
+    private final Map<File, Upload> uploads = new HashMap<>();
+
+    public synchronized JsonChunks getState(File dest, long size, String sha256) {
+        var upload = uploads.get(dest);
+        if (upload == null || !upload.matches(size, sha256) || !upload.part.exists()) {
+            return new JsonChunks();
+        }
+        return upload.toJson();
+    }
+
+    // Writes chunk from body, publishes file if it was the last one.
+    public JsonChunks write(
+            File dest,
+            long size,
+            String sha256,
+            long offset,
+            long length,
+            ReadableByteChannel body,
+            Publisher publisher) throws InterruptedException, IOException {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IllegalArgumentException("Chunk out of file range");
+        }
+        var upload = getOrCreate(dest, size, sha256);
+        try (var channel = FileChannel.open(upload.part.toPath(), StandardOpenOption.WRITE)) {
+            var written = channel.transferFrom(body, offset, length);
+            if (written != length) {
+                throw new IOException("Chunk truncated: " + written + " of " + length + " bytes");
+            }
+        }
+        synchronized (this) {
+            if (uploads.get(dest) != upload) {
+                // Replaced by upload of another version meanwhile
+                return new JsonChunks();
+            }
+            upload.add(offset, offset + length);
+            upload.lastUsed = System.currentTimeMillis();
+            if (!upload.isComplete()) {
+                return upload.toJson();
+            }
+            uploads.remove(dest);
+        }
+        var actual = Hash.sha256(upload.part);
+        if (!actual.equals(sha256)) {
+            upload.part.delete();
+            throw new IOException("SHA-256 mismatch for " + dest + ": " + actual);
+        }
+        publisher.publish(upload.part, dest);
+        LOG.debug("Chunked upload of {} complete", dest);
+        return new JsonChunks(upload.toJson().getRanges(), true);
+    }
+
+    private synchronized Upload getOrCreate(File dest, long size, String sha256)
+            throws IOException {
+        expire();
+        var upload = uploads.get(dest);
+        if (upload != null && upload.matches(size, sha256) && upload.part.exists()) {
+            return upload;
+        }
+        if (upload != null) {
+            upload.part.delete();
+        }
+        var part = new File(
+                dest.getParentFile(),
+                "." + dest.getName() + ".jred-chunks-" + UUID.randomUUID());
+        dest.getParentFile().mkdirs();
+        // Sized up front, chunks arrive out of order.
+        try (var raf = new RandomAccessFile(part, "rw")) {
+            raf.setLength(size);
+        }
+        upload = new Upload(part, size, sha256);
+        uploads.put(dest, upload);
+        return upload;
+    }
+
+    private void expire() {
+        var now = System.currentTimeMillis();
+        uploads.values().removeIf(u -> {
+            if (now - u.lastUsed < EXPIRE_MILLIS) {
+                return false;
+            }
+            LOG.debug("Upload to {} expired", u.part);
+            u.part.delete();
+            return true;
+        });
+    }
+}
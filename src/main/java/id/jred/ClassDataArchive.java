@@ -0,0 +1,123 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+// Application Class-Data Sharing archive of the shadow jar in ~/.jred.
+// JVM maps archived classes instead of loading and verifying them, which
+// cuts startup of every client command. Launchers pass the archive to java
+// if it is newer than the jar: JVM also ignores it when the jar or JVM
+// differ from the ones it was dumped with.
+//
+// The archive is made with the java running the app, in two steps: a
+// training run of the client path records loaded classes, then they are
+// dumped. Jar path must be the same as in launchers, which use canonical
+// path too.
+public final class ClassDataArchive {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    public static final String ARCHIVE_NAME = "jred-all.jsa";
+    private static final String CLASS_LIST_NAME = "jred-all.classlist";
+
+    private ClassDataArchive() {}
+
+    // Returns false if app does not run from a jar.
+    public static boolean update() throws InterruptedException, IOException {
+        var jar = getJar();
+        if (jar == null) {
+            LOG.debug("Not running from jar, no class data archive");
+            return false;
+        }
+        var java = new File(new File(System.getProperty("java.home"), "bin"), "java").toString();
+        var classList = new File(Dir.getHome(), CLASS_LIST_NAME);
+        var archive = new File(Dir.getHome(), ARCHIVE_NAME);
+        // Running launchers may map the old archive, replace it atomically.
+        var newArchive = new File(Dir.getHome(), ARCHIVE_NAME + ".new");
+        try {
+            // GC must match launchers, archived heap objects depend on it.
+            Script.run(
+                    Arrays.asList(
+                            java,
+                            "-XX:+UseG1GC",
+                            "-Xshare:off",
+                            "-XX:DumpLoadedClassList=" + classList,
+                            "-cp",
+                            jar.toString(),
+                            ClassDataArchive.class.getName()),
+                    null /* workDir */,
+                    null /* stdin */);
+            Script.run(
+                    Arrays.asList(
+                            java,
+                            "-XX:+UseG1GC",
+                            "-Xshare:dump",
+                            "-XX:SharedClassListFile=" + classList,
+                            "-XX:SharedArchiveFile=" + newArchive,
+                            "-cp",
+                            jar.toString()),
+                    null /* workDir */,
+                    null /* stdin */);
+            Files.move(
+                    newArchive.toPath(),
+                    archive.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            classList.delete();
+            newArchive.delete();
+        }
+        LOG.debug("Class data archive {} for {}", archive, jar);
+        return true;
+    }
+
+    private static File getJar() throws IOException {
+        var source = App.class.getProtectionDomain().getCodeSource();
+        if (source == null) {
+            return null;
+        }
+        File location;
+        try {
+            location = new File(source.getLocation().toURI());
+        } catch (URISyntaxException ex) {
+            throw new IOException(ex);
+        }
+        return location.isFile() ? location.getCanonicalFile() : null;
+    }
+
+    // Training run: goes through what client commands do, without network
+    // and repo access. Classes it loads end up in the archive.
+    public static void main(String[] args) throws IOException {
+        App.main(new String[] {"--help"});
+
+        var repo = new JsonRepo("repo", "revision");
+        var fileInfo = new JsonFileInfo("file", 1, Hash.sha256(new byte[] {1}));
+        var diff = new JsonDiff(repo, "diff");
+        var manifest = new JsonManifest(repo, Collections.singletonList(fileInfo));
+        for (var object : new Object[] {diff, manifest, new JsonChunks(), new JsonStatus()}) {
+            Json.read(object.getClass(), Json.mapper.writeValueAsBytes(object));
+        }
+
+        var bundle = new ByteArrayOutputStream();
+        var codec = Codecs.get(GzipCodec.NAME);
+        try (var os = codec.encode(bundle)) {
+            Bundle.write(os, diff, Dir.getCurrent(), Collections.emptyList());
+        }
+        try (var is = codec.decode(new ByteArrayInputStream(bundle.toByteArray()))) {
+            new Bundle.Reader(is).readHeader();
+        }
+
+        // Loads HTTP client classes, does not connect.
+        new URL("http://127.0.0.1:1/").openConnection();
+    }
+}
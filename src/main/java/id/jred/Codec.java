@@ -0,0 +1,17 @@
+package id.jred;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// HTTP content coding. Extra codecs (zstd, lz4) are found with
+// ServiceLoader, see Codecs.
+public interface Codec {
+    // Token used in Content-Encoding and Accept-Encoding.
+    String getName();
+
+    // Closing the returned stream must finish encoding and close os.
+    OutputStream encode(OutputStream os) throws IOException;
+
+    InputStream decode(InputStream is) throws IOException;
+}
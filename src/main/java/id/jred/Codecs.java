@@ -0,0 +1,73 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+public final class Codecs {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    // Smaller payloads are sent as is, compression would not pay off.
+    public static final int MIN_SIZE = 1024;
+
+    public static final String NONE = "none";
+
+    private static final Map<String, Codec> codecs = new LinkedHashMap<>();
+    static {
+        register(new GzipCodec());
+        for (var codec : ServiceLoader.load(Codec.class)) {
+            register(codec);
+        }
+    }
+
+    private Codecs() {}
+
+    private static void register(Codec codec) {
+        LOG.debug("Codec {}", codec.getName());
+        codecs.put(codec.getName().toLowerCase(), codec);
+    }
+
+    // Returns null if codec is unknown.
+    public static Codec get(String name) {
+        return codecs.get(name.trim().toLowerCase());
+    }
+
+    // Also used as Accept-Encoding value, in order of preference.
+    public static String allNamesAsString() {
+        return String.join(", ", codecs.keySet());
+    }
+
+    // Picks first known codec from Accept-Encoding, null if none. Quality
+    // values are not weighed, but q=0 excludes the codec. Parameter names
+    // are case-insensitive and can have whitespace around them.
+    public static Codec negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        for (var item : acceptEncoding.split(",")) {
+            var parts = item.split(";");
+            var codec = get(parts[0]);
+            if (codec != null && !isExcluded(parts)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isExcluded(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            var param = parts[i].replaceAll("\\s", "").toLowerCase();
+            if (param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2)) == 0;
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+}
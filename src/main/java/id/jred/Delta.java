@@ -0,0 +1,150 @@
+package id.jred;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// Line based delta between two diffs. Diffs are split into per file
+// sections, each section is matched by its header line and only the
+// differing middle part of it is sent as text.
+public final class Delta {
+    private static final String SECTION_PREFIX = "diff --git ";
+
+    // Approximate JSON overhead of an op.
+    private static final int OP_SIZE = 24;
+
+    private Delta() {}
+
+    public static List<JsonDeltaOp> compute(String base, String target) {
+        var baseLines = splitLines(base);
+        var targetLines = splitLines(target);
+        var baseSections = new HashMap<String, int[]>();
+        for (var s : getSections(baseLines)) {
+            baseSections.putIfAbsent(getHeader(baseLines, s), s);
+        }
+        var ops = new ArrayList<JsonDeltaOp>();
+        for (var ts : getSections(targetLines)) {
+            var bs = baseSections.get(getHeader(targetLines, ts));
+            if (bs == null) {
+                addText(ops, targetLines, ts[0], ts[1]);
+                continue;
+            }
+            var targetLength = ts[1] - ts[0];
+            var baseLength = bs[1] - bs[0];
+            var prefix = 0;
+            while (prefix < targetLength && prefix < baseLength &&
+                    targetLines.get(ts[0] + prefix).equals(baseLines.get(bs[0] + prefix))) {
+                prefix++;
+            }
+            var suffix = 0;
+            while (suffix < targetLength - prefix && suffix < baseLength - prefix &&
+                    targetLines.get(ts[1] - 1 - suffix).equals(baseLines.get(bs[1] - 1 - suffix))) {
+                suffix++;
+            }
+            addCopy(ops, bs[0], prefix);
+            addText(ops, targetLines, ts[0] + prefix, ts[1] - suffix);
+            addCopy(ops, bs[1] - suffix, suffix);
+        }
+        return ops;
+    }
+
+    public static String apply(String base, List<JsonDeltaOp> ops) {
+        return apply(base, ops, Long.MAX_VALUE);
+    }
+
+    // Returns null if result is longer than maxLength chars. Ops can copy
+    // the same lines many times, so a small delta can make a huge diff.
+    public static String apply(String base, List<JsonDeltaOp> ops, long maxLength) {
+        var baseLines = splitLines(base);
+        var sb = new StringBuilder();
+        for (var op : ops) {
+            if (op.getText() != null) {
+                sb.append(op.getText());
+            } else {
+                if (op.getStart() < 0 ||
+                        op.getCount() < 0 ||
+                        op.getStart() + op.getCount() > baseLines.size()) {
+                    throw new IllegalArgumentException("Delta op out of range");
+                }
+                for (int i = op.getStart(); i < op.getStart() + op.getCount(); i++) {
+                    sb.append(baseLines.get(i));
+                    if (sb.length() > maxLength) {
+                        return null;
+                    }
+                }
+            }
+            if (sb.length() > maxLength) {
+                return null;
+            }
+        }
+        return sb.toString();
+    }
+
+    public static long getSize(List<JsonDeltaOp> ops) {
+        var size = 0L;
+        for (var op : ops) {
+            size += OP_SIZE + (op.getText() != null ? op.getText().length() : 0);
+        }
+        return size;
+    }
+
+    // Lines keep their terminators, so joining them gives the original.
+    private static List<String> splitLines(String s) {
+        var lines = new ArrayList<String>();
+        var start = 0;
+        while (start < s.length()) {
+            var end = s.indexOf('\n', start);
+            end = end < 0 ? s.length() : end + 1;
+            lines.add(s.substring(start, end));
+            start = end;
+        }
+        return lines;
+    }
+
+    // Returns [start, end) ranges. Lines before the first section header
+    // make a section too.
+    private static List<int[]> getSections(List<String> lines) {
+        var sections = new ArrayList<int[]>();
+        var start = 0;
+        for (int i = 1; i <= lines.size(); i++) {
+            if (i == lines.size() || lines.get(i).startsWith(SECTION_PREFIX)) {
+                sections.add(new int[]{start, i});
+                start = i;
+            }
+        }
+        return sections;
+    }
+
+    private static String getHeader(List<String> lines, int[] section) {
+        var first = lines.get(section[0]);
+        return first.startsWith(SECTION_PREFIX) ? first : "";
+    }
+
+    private static void addCopy(List<JsonDeltaOp> ops, int start, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (!ops.isEmpty()) {
+            var last = ops.get(ops.size() - 1);
+            if (last.getText() == null && last.getStart() + last.getCount() == start) {
+                ops.set(ops.size() - 1, new JsonDeltaOp(last.getStart(), last.getCount() + count));
+                return;
+            }
+        }
+        ops.add(new JsonDeltaOp(start, count));
+    }
+
+    private static void addText(List<JsonDeltaOp> ops, List<String> lines, int start, int end) {
+        if (start == end) {
+            return;
+        }
+        var sb = new StringBuilder();
+        if (!ops.isEmpty() && ops.get(ops.size() - 1).getText() != null) {
+            sb.append(ops.remove(ops.size() - 1).getText());
+        }
+        for (int i = start; i < end; i++) {
+            sb.append(lines.get(i));
+        }
+        ops.add(new JsonDeltaOp(sb.toString()));
+    }
+}
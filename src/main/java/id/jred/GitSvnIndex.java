@@ -0,0 +1,142 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// Maps git commits of git-svn repo to svn revision they are based on: the
+// first commit with git-svn-id on the first-parent walk. Kept in ~/.jred,
+// file per repo, a line per commit: "<commit> <svn revision> <svn commit>".
+// Commit id covers its history, so entries never go stale and the file is
+// only appended to. Lookup of a new commit walks history down to the first
+// commit which is in the index or has git-svn-id, all walked commits are
+// added to the index.
+public final class GitSvnIndex {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    private static final Pattern regexGitSvnId =
+            Pattern.compile("^git-svn-id: (.+)@([0-9]+) ", Pattern.MULTILINE);
+
+    private final File repoDir;
+    private final File file;
+    // Commits read by git log at first, doubles with every next run
+    private final int batchSize;
+    // Commit to svn revision and svn commit
+    private final Map<String, String[]> entries = new HashMap<>();
+
+    public GitSvnIndex(File repoDir, int batchSize) throws IOException {
+        this(repoDir, batchSize, new File(
+                new File(Dir.getHome(), "gitsvn_index"),
+                repoDir.getName().replaceAll("[^A-Za-z0-9._-]", "_")));
+    }
+
+    // Package-private for tests, which keep index out of home dir.
+    GitSvnIndex(File repoDir, int batchSize, File file) throws IOException {
+        this.repoDir = repoDir;
+        this.batchSize = batchSize;
+        this.file = file;
+        if (file.exists()) {
+            for (var line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                var parts = line.split(" ");
+                // Line can be cut if a writer was killed
+                if (parts.length == 3) {
+                    entries.put(parts[0], new String[]{parts[1], parts[2]});
+                }
+            }
+            LOG.debug("{} commits in git-svn index {}", entries.size(), file);
+        }
+    }
+
+    // Returns svn revision and git commit with git-svn-id.
+    public String[] resolve(String commit) throws InterruptedException, IOException {
+        var found = entries.get(commit);
+        if (found != null) {
+            return found;
+        }
+        var walked = new ArrayList<String>();
+        var count = batchSize;
+        while (found == null) {
+            var output = Script.run(
+                    Arrays.asList(
+                            "git",
+                            "log",
+                            "--first-parent",
+                            "-z",
+                            "--format=%H%n%B",
+                            "--skip=" + walked.size(),
+                            "-" + count,
+                            commit),
+                    repoDir,
+                    null /* stdin */);
+            var log = parseLog(output);
+            for (var c : log) {
+                found = entries.get(c[0]);
+                if (found != null) {
+                    break;
+                }
+                walked.add(c[0]);
+                if (c[1] != null) {
+                    found = new String[]{c[1], c[0]};
+                    break;
+                }
+            }
+            if (found == null && log.size() < count) {
+                throw new IOException(MessageFormat.format(
+                        "git-svn-id not found in history of {0}", commit));
+            }
+            count *= 2;
+        }
+        LOG.debug("Walked {} commits to r{} {}", walked.size(), found[0], found[1]);
+        add(walked, found);
+        return found;
+    }
+
+    // Single write, so concurrent appends of small batches do not mix.
+    private void add(List<String> commits, String[] found) throws IOException {
+        var sb = new StringBuilder();
+        for (var c : commits) {
+            entries.put(c, found);
+            sb.append(c).append(' ').append(found[0]).append(' ').append(found[1]).append('\n');
+        }
+        file.getParentFile().mkdirs();
+        try (var os = new FileOutputStream(file, true)) {
+            os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // Parses output of git log -z --format=%H%n%B to commit and svn
+    // revision from git-svn-id, or null. Package-private for benchmarks.
+    static List<String[]> parseLog(String log) {
+        var commits = new ArrayList<String[]>();
+        var start = 0;
+        while (start < log.length()) {
+            var end = log.indexOf('\0', start);
+            if (end < 0) {
+                end = log.length();
+            }
+            var newline = log.indexOf('\n', start);
+            if (newline < 0 || newline > end) {
+                newline = end;
+            }
+            var commit = log.substring(start, newline).trim();
+            if (!commit.isEmpty()) {
+                var matcher = regexGitSvnId.matcher(log).region(newline, end);
+                commits.add(new String[]{commit, matcher.find() ? matcher.group(2) : null});
+            }
+            start = end + 1;
+        }
+        return commits;
+    }
+}
@@ -0,0 +1,231 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Brings git worktree to HEAD plus diff without `git reset --hard`. Only
+// files which diffs and copies touched since the last full reset can
+// differ from HEAD. Those are restored from HEAD objects and patched in
+// memory, and written only if the result differs from what is on disk.
+// Unchanged files keep their mtimes, so incremental builds stay valid.
+//
+// Worktree changes done not through the server are not seen, as well as
+// changes to files other than regular ones: then full reset is needed.
+public final class GitWorktree {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    private static final String REGULAR_FILE_MODE = "100644";
+    private static final String EXECUTABLE_FILE_MODE = "100755";
+    // ls-tree arguments per run
+    private static final int MAX_PATHS = 1000;
+
+    // Files which can differ from HEAD at revision, paths are relative to
+    // repo dir. Changed under repo lock only.
+    public static final class State {
+        private final String revision;
+        private final Set<String> touched = new HashSet<>();
+        // Created by diff, not in HEAD
+        private final Set<String> created = new HashSet<>();
+
+        private State(String revision, Patch patch) {
+            this.revision = revision;
+            for (var f : patch.getFiles()) {
+                touched.add(f.getPath());
+                if (f.isCreated()) {
+                    created.add(f.getPath());
+                }
+            }
+        }
+
+        // After full reset and apply of the patch.
+        public static State afterReset(String revision, Patch patch) {
+            return new State(revision, patch);
+        }
+
+        public String getRevision() {
+            return revision;
+        }
+
+        // File written by copy. If it is not in HEAD, it is left as is.
+        public void touch(String path) {
+            touched.add(path);
+        }
+    }
+
+    private GitWorktree() {}
+
+    // Returns new state, or null if worktree has files which can not be
+    // restored here. Throws MismatchException if patch does not apply to
+    // HEAD. Nothing is written in those cases. On other errors, such as of
+    // git, worktree can be partly updated and needs full reset.
+    public static State update(File repoPath, State state, Patch patch)
+            throws InterruptedException, IOException {
+        var patches = new HashMap<String, Patch.FilePatch>();
+        var paths = new LinkedHashSet<>(state.touched);
+        for (var f : patch.getFiles()) {
+            patches.put(f.getPath(), f);
+            paths.add(f.getPath());
+        }
+        var pathList = new ArrayList<>(paths);
+        var targets = new ArrayList<Path>();
+        for (var p : pathList) {
+            var target = new File(repoPath, p).getCanonicalFile();
+            if (!target.toPath().startsWith(repoPath.toPath())) {
+                throw new Patch.UnsupportedException("File outside repo directory tree: {0}", p);
+            }
+            targets.add(target.toPath());
+        }
+        var executables = new HashSet<String>();
+        var head = readHead(repoPath, pathList, executables);
+        if (head == null) {
+            return null;
+        }
+
+        // New content, null to delete. Same array as on disk to skip.
+        var unchanged = new byte[0];
+        var contents = Patch.runAll(pathList.size(), i -> {
+            var path = pathList.get(i);
+            var original = head.get(path);
+            var filePatch = patches.get(path);
+            byte[] content;
+            if (filePatch != null) {
+                content = filePatch.apply(original);
+            } else if (original != null || state.created.contains(path)) {
+                content = original;
+            } else {
+                // Untracked file from a copy
+                return unchanged;
+            }
+            byte[] current;
+            try {
+                current = Files.readAllBytes(targets.get(i));
+            } catch (NoSuchFileException ex) {
+                current = null;
+            }
+            return Arrays.equals(content, current) ? unchanged : content;
+        });
+
+        var written = Patch.runAll(pathList.size(), i -> {
+            var content = contents.get(i);
+            if (content == null || content == unchanged) {
+                return 0;
+            }
+            var exists = Files.exists(targets.get(i));
+            Patch.write(targets.get(i), content);
+            if (!exists && executables.contains(pathList.get(i))) {
+                targets.get(i).toFile().setExecutable(true, false);
+            }
+            return 1;
+        });
+        var count = written.stream().mapToInt(Integer::intValue).sum();
+        // Deleted last and on this thread, see Patch.apply
+        for (int i = 0; i < pathList.size(); i++) {
+            if (contents.get(i) == null && Files.exists(targets.get(i))) {
+                Patch.delete(repoPath.toPath(), targets.get(i));
+                count++;
+            }
+        }
+        LOG.debug("Changed {} of {} touched files", count, pathList.size());
+        return new State(state.revision, patch);
+    }
+
+    // Returns content of paths in HEAD, without paths not in HEAD. Returns
+    // null if some path is not a regular file there.
+    private static Map<String, byte[]> readHead(
+            File repoPath,
+            List<String> paths,
+            Set<String> executables) throws InterruptedException, IOException {
+        var wanted = new HashSet<>(paths);
+        var objects = new HashMap<String, String>();
+        for (int i = 0; i < paths.size(); i += MAX_PATHS) {
+            var command = new ArrayList<>(Arrays.asList(
+                    "git", "ls-tree", "-z", "--full-tree", "HEAD", "--"));
+            command.addAll(paths.subList(i, Math.min(i + MAX_PATHS, paths.size())));
+            var output = Script.run(command, repoPath, null /* stdin */);
+            // <mode> SP <type> SP <object> TAB <path> NUL
+            for (var entry : output.split("\0")) {
+                var tab = entry.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                var fields = entry.substring(0, tab).split(" ");
+                var path = entry.substring(tab + 1);
+                if (!wanted.contains(path)) {
+                    continue;
+                }
+                if (!fields[0].equals(REGULAR_FILE_MODE) &&
+                        !fields[0].equals(EXECUTABLE_FILE_MODE)) {
+                    LOG.debug("Not a regular file in HEAD: {}", path);
+                    return null;
+                }
+                if (fields[0].equals(EXECUTABLE_FILE_MODE)) {
+                    executables.add(path);
+                }
+                objects.put(path, fields[2]);
+            }
+        }
+        var contents = new HashMap<String, byte[]>();
+        if (objects.isEmpty()) {
+            return contents;
+        }
+        var input = new StringBuilder();
+        var order = new ArrayList<String>();
+        for (var e : objects.entrySet()) {
+            input.append(e.getValue()).append('\n');
+            order.add(e.getKey());
+        }
+        var output = Script.runBytes(
+                Arrays.asList("git", "cat-file", "--batch"),
+                repoPath,
+                input.toString());
+        // <object> SP <type> SP <size> LF <content> LF
+        var pos = 0;
+        for (var path : order) {
+            var newline = indexOf(output, (byte) '\n', pos);
+            if (newline < 0) {
+                throw new IOException("Truncated git cat-file output");
+            }
+            var header = new String(output, pos, newline - pos, StandardCharsets.UTF_8).split(" ");
+            if (header.length != 3 || !header[1].equals("blob")) {
+                throw new IOException("Unexpected git cat-file output: " + String.join(" ", header));
+            }
+            var start = newline + 1;
+            long end;
+            try {
+                end = start + Long.parseLong(header[2]);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Unexpected git cat-file size: " + header[2]);
+            }
+            if (end >= output.length) {
+                throw new IOException("Truncated git cat-file output");
+            }
+            contents.put(path, Arrays.copyOfRange(output, start, (int) end));
+            pos = (int) end + 1;
+        }
+        return contents;
+    }
+
+    private static int indexOf(byte[] data, byte b, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
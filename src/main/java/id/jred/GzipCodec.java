@@ -0,0 +1,28 @@
+package id.jred;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public final class GzipCodec implements Codec {
+    public static final String NAME = "gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public OutputStream encode(OutputStream os) throws IOException {
+        return new GZIPOutputStream(os, BUFFER_SIZE);
+    }
+
+    @Override
+    public InputStream decode(InputStream is) throws IOException {
+        return new GZIPInputStream(is, BUFFER_SIZE);
+    }
+}
@@ -4,31 +4,113 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
+import spark.Route;
 import spark.Spark;
 
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletRequestWrapper;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.MessageFormat;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 
 public final class Handlers {
     private static final Logger LOG = LoggerFactory.getLogger("jred");
 
-    private final Map<String, JsonTarget> repoMap;
+    private static final Metrics.Family<Metrics.Counter> requestCount = Metrics.DEFAULT.counter(
+            "jred_requests_total", "Requests by endpoint.", "endpoint");
+    private static final Metrics.Family<Metrics.Counter> errorCount = Metrics.DEFAULT.counter(
+            "jred_request_errors_total", "Requests answered with error status.", "endpoint");
+    private static final Metrics.Family<Metrics.Histogram> requestDuration =
+            Metrics.DEFAULT.histogram(
+                    "jred_request_duration_seconds", "Request handling time.", "endpoint");
+    private static final Metrics.Family<Metrics.Gauge> requestsInFlight = Metrics.DEFAULT.gauge(
+            "jred_requests_in_flight", "Requests being handled.", "endpoint");
+    private static final Metrics.Family<Metrics.Counter> rejectedCount = Metrics.DEFAULT.counter(
+            "jred_requests_rejected_total", "Requests answered 503 on overload.", "endpoint");
+    private static final Metrics.Counter receivedBytes = Metrics.DEFAULT.counter(
+            "jred_received_bytes_total", "Request body bytes, before decoding.", null).get();
+    private static final Metrics.Family<Metrics.Histogram> resetDuration =
+            Metrics.DEFAULT.histogram(
+                    "jred_reset_duration_seconds", "Worktree reset time.", "repo");
+    private static final Metrics.Family<Metrics.Histogram> applyDuration =
+            Metrics.DEFAULT.histogram(
+                    "jred_apply_duration_seconds", "Diff apply time.", "repo");
 
-    public static void start(String host, int port, Map<String, JsonTarget> repoMap) {
+    // Poll of job result waits this long at most, see job
+    private static final long MAX_POLL_SECONDS = 5;
+    // Retry-After of 503, client adds jitter
+    private static final int RETRY_AFTER_SECONDS = 1;
+
+    private static final Pattern regexRevision = Pattern.compile("^[0-9a-f]{40}([0-9a-f]{24})?$");
+
+    // Replaced as a whole on reload, see RepoMap
+    private final Supplier<RepoMap> repoMap;
+    private final HashCache hashCache = new HashCache();
+    private final RepoLocks repoLocks = new RepoLocks();
+    private final RevisionProvider revisionProvider = new RevisionProvider();
+    private final ChunkedUploads chunkedUploads = new ChunkedUploads();
+    private final Jobs jobs = new Jobs();
+    private final Server.Limits limits;
+    // Admitted requests, see admitted
+    private final Semaphore requests;
+    // Polls waiting for job result, see job
+    private final Semaphore polls;
+    private final Semaphore applies;
+    private final Map<String, Semaphore> repoApplies = new ConcurrentHashMap<>();
+    // Last diff applied to repo, base for deltas
+    private final Map<String, AppliedDiff> appliedDiffs = new ConcurrentHashMap<>();
+    // Files which can differ from HEAD, for targeted reset of git repos.
+    // By path, as repo can move to another path on reload.
+    private final Map<File, GitWorktree.State> worktreeStates = new ConcurrentHashMap<>();
+
+    public static void start(
+            String host,
+            int port,
+            Supplier<RepoMap> repoMap,
+            Server.Limits limits) {
         Spark.ipAddress(host);
         Spark.port(port);
+        Spark.threadPool(limits.maxThreads);
 
-        var handler = new Handlers(repoMap);
-        Spark.get("/", handler::root);
-        Spark.post("/copy", handler::copy);
-        Spark.post("/diff", handler::diff);
+        var handler = new Handlers(repoMap, limits);
+        // Status pages are always served, they are cheap and show overload.
+        // Job polls are not admitted either, they must not crowd out submits.
+        Spark.get("/", timed("GET /", handler::root));
+        Spark.get("/metrics", timed("GET /metrics", handler::metrics));
+        Spark.post("/copy", handler.admitted("POST /copy", handler::copy));
+        // Diff is held in memory: body and diff rebuilt from delta are both
+        // limited to maxBodySize, over it the reply is 413.
+        Spark.post("/diff", handler.admitted("POST /diff", handler::diff));
+        Spark.post("/submit", handler.admitted("POST /submit", handler::submit));
+        Spark.put("/files/:repo/*", handler.admitted("PUT /files", handler::putFile));
+        Spark.post("/manifest", handler.admitted("POST /manifest", handler::manifest));
+        Spark.get("/chunks/:repo/*", handler.admitted("GET /chunks", handler::getChunks));
+        Spark.put("/chunks/:repo/*", handler.admitted("PUT /chunks", handler::putChunk));
+        Spark.get("/jobs/:id", timed("GET /jobs", handler::job));
 
         new Thread(() -> {
             while (PidFile.read() != null) {
@@ -43,8 +125,60 @@ public final class Handlers {
         }).start();
     }
 
-    private Handlers(Map<String, JsonTarget> repoMap) {
+    private Handlers(Supplier<RepoMap> repoMap, Server.Limits limits) {
         this.repoMap = repoMap;
+        this.limits = limits;
+        this.requests = new Semaphore(limits.maxRequests);
+        // Half of threads admitted requests leave, the rest reject and
+        // serve status pages.
+        this.polls = new Semaphore(Math.max(1, (limits.maxThreads - limits.maxRequests) / 2));
+        this.applies = new Semaphore(limits.maxApplies, true);
+    }
+
+    // Over max requests, replies 503 at once, without reading the body.
+    // Clients which sent Expect: 100-continue do not send it at all.
+    private Route admitted(String endpoint, Route route) {
+        var rejected = rejectedCount.get(endpoint);
+        return timed(endpoint, (req, response) -> {
+            if (!requests.tryAcquire()) {
+                rejected.inc();
+                return respondClientError(req, response, new ClientError(
+                        503, "Server is overloaded, {0} requests", limits.maxRequests));
+            }
+            try {
+                return route.handle(req, response);
+            } finally {
+                requests.release();
+            }
+        });
+    }
+
+    // Records count, time and in-flight gauge of endpoint requests.
+    private static Route timed(String endpoint, Route route) {
+        var count = requestCount.get(endpoint);
+        var errors = errorCount.get(endpoint);
+        var duration = requestDuration.get(endpoint);
+        var inFlight = requestsInFlight.get(endpoint);
+        return (req, response) -> {
+            var start = System.nanoTime();
+            count.inc();
+            inFlight.inc();
+            try {
+                return route.handle(req, response);
+            } finally {
+                inFlight.dec();
+                duration.observeSince(start);
+                if (response.status() >= 400) {
+                    errors.inc();
+                }
+            }
+        };
+    }
+
+    private Object metrics(Request req, Response response) {
+        LOG.debug("Handle /metrics");
+        response.type(MimeType.METRICS);
+        return Metrics.DEFAULT.render();
     }
 
     private Object root(Request req, Response response) {
@@ -56,117 +190,967 @@ public final class Handlers {
                 writer.println("jred is running");
                 writer.println();
                 writer.flush(); // Must be here, or repo map will be before
-                Json.writeFormatted(repoMap, os);
+                Json.writeFormatted(repoMap.get().getTargets(), os);
             }
             return os.toString();
         } catch (IOException ex) {
-            return respondUnexpected(response, ex);
+            return respondUnexpected(req, response, ex);
         }
     }
 
     private Object copy(Request req, Response response) {
         LOG.debug("Handle /copy");
+        var timings = new Timings("/copy");
+        File spoolFile = null;
         try {
-            var copyRequest = Json.read(JsonCopy.class, req.bodyAsBytes());
-            var repo = repoMap.get(copyRequest.getRepo().getName());
-            if (repo == null) {
-                return respondBadRequest(
-                        response,
-                        "Repo not found: {0}",
-                        copyRequest.getRepo().getName());
+            // Data is streamed, it is never held in memory as a whole. It is
+            // spooled before repo lock, so a slow client does not hold it.
+            var body = new StreamedJson(getBodyStream(req));
+            try (var phase = timings.start("read")) {
+                if (!body.readUntil("data")) {
+                    throw new ClientError("Data is missing");
+                }
+            }
+            spoolFile = File.createTempFile("jred-", ".copy");
+            try (var phase = timings.start("spool");
+                 var stream = new FileOutputStream(spoolFile)) {
+                body.copyString(stream);
+            }
+            var copyRequest = Json.mapper.treeToValue(body.getFields(), JsonCopy.class);
+            if (copyRequest.getRepo() == null || copyRequest.getFile() == null) {
+                throw new ClientError("Repo or file is missing");
+            }
+            var checkout = getCheckout(req, copyRequest.getRepo());
+            var destPath = getRepoFile(checkout.path, copyRequest.getFile());
+            try (var lock = lockAfterJobs(checkout.key, timings);
+                 var phase = timings.start("write")) {
+                touch(checkout, destPath);
+                moveIn(spoolFile.toPath(), destPath);
+            }
+            return respondOK(req, response, new JsonStatus("", null, null, timings.get()));
+        } catch (ClientError ex) {
+            return respondClientError(req, response, ex);
+        } catch (InterruptedException | IOException ex) {
+            return respondUnexpected(req, response, ex);
+        } finally {
+            if (spoolFile != null) {
+                spoolFile.delete();
             }
-            var repoPath = new File(repo.getPath()).getAbsoluteFile().getCanonicalFile();
-            var destPath = new File(repoPath, copyRequest.getFile()).getCanonicalFile();
-            if (!destPath.toPath().startsWith(repoPath.toPath())) {
-                return respondBadRequest(
-                        response,
-                        "File outside repo directory tree: {0}",
-                        copyRequest.getFile());
-            }
-            destPath.getParentFile().mkdirs();
-            try (var stream = new FileOutputStream(destPath)) {
-                stream.write(copyRequest.getData().getBytes());
-            }
-            return respondOK(response);
-        } catch (IOException ex) {
-            return respondUnexpected(response, ex);
         }
     }
 
     private Object diff(Request req, Response response) {
         LOG.debug("Handle /diff");
+        var timings = new Timings("/diff");
         try {
-            var diffRequest = Json.read(JsonDiff.class, req.bodyAsBytes());
-            var repo = repoMap.get(diffRequest.getRepo().getName());
-            if (repo == null) {
-                return respondBadRequest(
-                        response,
-                        "Repo not found: {0}",
-                        diffRequest.getRepo().getName());
+            JsonDiff diffRequest;
+            try (var phase = timings.start("read")) {
+                diffRequest = readDiff(getBodyStream(req), limits.maxBodySize);
             }
-            var repoPath = new File(repo.getPath()).getAbsoluteFile().getCanonicalFile();
-            var vcs = VCS.fromCmdLineString(repo.getVCS());
-            var revision = Script.runShell(
-                    vcs.toCmdLineString() + "/revision",
-                    Collections.emptyList(),
-                    repoPath).trim();
-            if (!revision.equals(diffRequest.getRepo().getRevision())) {
-                return respondBadRequest(
-                        response,
-                        "Revision mismatch: server {0}, client {1}",
-                        revision,
-                        diffRequest.getRepo().getRevision());
+            var checkout = getCheckout(req, diffRequest.getRepo());
+            checkDeltaBase(checkout, diffRequest);
+            if (isAsync(req)) {
+                checkJobs();
+                return respondJob(req, response, checkout, submitJob(checkout, timings, () -> {
+                    try (var lock = repoLocks.lock(checkout.key)) {
+                        applyDiff(checkout, diffRequest, timings);
+                    }
+                }));
+            }
+            try (var lock = lockAfterJobs(checkout.key, timings)) {
+                applyDiff(checkout, diffRequest, timings);
+            }
+            return respondOK(req, response, checkout.getStatus(timings));
+        } catch (ClientError ex) {
+            return respondClientError(req, response, ex);
+        } catch (InterruptedException | IOException ex) {
+            return respondUnexpected(req, response, ex);
+        }
+    }
+
+    // Diff and untracked files in one streamed bundle, see Bundle. Files
+    // are spooled before repo lock is taken, so a slow upload does not hold
+    // up the repo. Async submit ends before the job.
+    private Object submit(Request req, Response response) {
+        LOG.debug("Handle /submit");
+        var timings = new Timings("/submit");
+        Path spoolDir = null;
+        try {
+            var bundle = new Bundle.Reader(getBodyStream(req));
+            JsonDiff diffRequest;
+            try (var phase = timings.start("read")) {
+                diffRequest = bundle.readHeader();
+            }
+            var checkout = getCheckout(req, diffRequest.getRepo());
+            checkDeltaBase(checkout, diffRequest);
+            var async = isAsync(req);
+            if (async) {
+                checkJobs();
+            }
+            spoolDir = Files.createTempDirectory("jred-");
+            var files = new ArrayList<String>();
+            try (var phase = timings.start("spool")) {
+                for (var file = bundle.nextFile(); file != null; file = bundle.nextFile()) {
+                    resolveRepoFile(checkout.path, file);
+                    try (var stream = new FileOutputStream(spoolDir.resolve(
+                            Integer.toString(files.size())).toFile())) {
+                        bundle.copyFile(stream);
+                    }
+                    files.add(file);
+                }
+            }
+            if (!async) {
+                try (var lock = lockAfterJobs(checkout.key, timings)) {
+                    applyDiff(checkout, diffRequest, timings);
+                    moveSpooled(checkout, spoolDir, files, timings);
+                }
+                return respondOK(req, response, checkout.getStatus(timings));
+            }
+            var spooled = spoolDir;
+            spoolDir = null; // Job deletes it
+            return respondJob(req, response, checkout, submitJob(checkout, timings, () -> {
+                try (var lock = repoLocks.lock(checkout.key)) {
+                    applyDiff(checkout, diffRequest, timings);
+                    moveSpooled(checkout, spooled, files, timings);
+                } finally {
+                    deleteSpool(spooled);
+                }
+            }));
+        } catch (ClientError ex) {
+            return respondClientError(req, response, ex);
+        } catch (InterruptedException | IOException ex) {
+            return respondUnexpected(req, response, ex);
+        } finally {
+            if (spoolDir != null) {
+                deleteSpool(spoolDir);
+            }
+        }
+    }
+
+    // Short poll: replies with job result when it ends, or with 202 and job
+    // id if it does not end in a few seconds, then client polls again. A
+    // poll holds a worker thread while it waits, so waiting ones are capped:
+    // over it, poll of a running job gets 503 and client retries later.
+    private Object job(Request req, Response response) {
+        LOG.debug("Handle /jobs");
+        try {
+            var id = req.params(":id");
+            var result = jobs.get(id);
+            if (result == null) {
+                throw new ClientError(404, "Job not found: {0}", id);
+            }
+            if (result.isDone()) {
+                return respondResult(req, response, result.get());
+            }
+            var timeout = req.queryParams("timeout") != null
+                    ? Math.min(getLongParam(req, "timeout"), MAX_POLL_SECONDS)
+                    : MAX_POLL_SECONDS;
+            if (!polls.tryAcquire()) {
+                rejectedCount.get("GET /jobs").inc();
+                throw new ClientError(503, "Server is overloaded, too many job polls");
+            }
+            try {
+                return respondResult(req, response, result.get(timeout, TimeUnit.SECONDS));
+            } catch (TimeoutException ex) {
+                response.status(202);
+                return renderJson(req, response, new JsonStatus("", id));
+            } finally {
+                polls.release();
+            }
+        } catch (ClientError ex) {
+            return respondClientError(req, response, ex);
+        } catch (ExecutionException | InterruptedException | IOException ex) {
+            return respondUnexpected(req, response, ex);
+        }
+    }
+
+    // Raw file upload: body is file content, streamed to disk as is. It is
+    // spooled before repo lock, so neither the upload nor the repo waits
+    // for the other.
+    private Object putFile(Request req, Response response) {
+        LOG.debug("Handle /files");
+        File spoolFile = null;
+        try {
+            var checkout = getCheckout(req, new JsonRepo(req.params(":repo"), null));
+            var destPath = getRepoFile(checkout.path, getSplat(req));
+            // Length of encoded body says nothing about file size.
+            var expectedSize = req.headers("Content-Encoding") == null
+                    ? req.raw().getContentLengthLong()
+                    : -1;
+            spoolFile = File.createTempFile("jred-", ".file");
+            try (var body = Channels.newChannel(getBodyStream(req))) {
+                writeFile(body, spoolFile, expectedSize);
+            }
+            try (var lock = lockAfterJobs(checkout.key)) {
+                touch(checkout, destPath);
+                moveIn(spoolFile.toPath(), destPath);
+            }
+            return respondOK(req, response);
+        } catch (ClientError ex) {
+            return respondClientError(req, response, ex);
+        } catch (InterruptedException | IOException ex) {
+            return respondUnexpected(req, response, ex);
+        } finally {
+            if (spoolFile != null) {
+                spoolFile.delete();
+            }
+        }
+    }
+
+    // Negative expectedSize means unknown.
+    private static void writeFile(ReadableByteChannel body, File destPath, long expectedSize)
+            throws IOException {
+        writeAtomically(destPath, part -> {
+            try (var channel = FileChannel.open(
+                    part.toPath(),
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                // Reads until end of the body for non-file channels.
+                var size = channel.transferFrom(body, 0, Long.MAX_VALUE);
+                if (expectedSize >= 0 && size != expectedSize) {
+                    throw new IOException(MessageFormat.format(
+                            "Body truncated: {0} of {1} bytes", size, expectedSize));
+                }
+                LOG.debug("Written {} bytes to {}", size, destPath);
+            }
+        });
+    }
+
+    // Spooled file goes to part file first: spool can be on another file
+    // system, where move is a copy.
+    private static void moveIn(Path spooled, File destPath) throws IOException {
+        writeAtomically(destPath, part -> Files.move(
+                spooled,
+                part.toPath(),
+                StandardCopyOption.REPLACE_EXISTING));
+    }
+
+    // Called under repo lock, files are named by index in spool dir.
+    private void moveSpooled(Checkout checkout, Path spoolDir, List<String> files, Timings timings)
+            throws ClientError, IOException {
+        try (var phase = timings.start("files")) {
+            for (int i = 0; i < files.size(); i++) {
+                var destPath = getRepoFile(checkout.path, files.get(i));
+                touch(checkout, destPath);
+                moveIn(spoolDir.resolve(Integer.toString(i)), destPath);
+            }
+        }
+        LOG.debug("Moved {} files", files.size());
+    }
+
+    // Content goes to hidden part file next to the destination, which
+    // replaces it only when complete. Aborted write leaves file as it was.
+    private static void writeAtomically(File destPath, PartWriter writer) throws IOException {
+        var part = new File(destPath.getParentFile(), "." + destPath.getName() + ".jred-part");
+        try {
+            writer.write(part);
+            if (destPath.exists()) {
+                try {
+                    Files.setPosixFilePermissions(
+                            part.toPath(),
+                            Files.getPosixFilePermissions(destPath.toPath()));
+                } catch (UnsupportedOperationException ex) {
+                    // Not a POSIX file system, nothing to keep.
+                }
+            }
+            move(part, destPath);
+        } finally {
+            Files.deleteIfExists(part.toPath());
+        }
+    }
+
+    private static void move(File part, File destPath) throws IOException {
+        Files.move(
+                part.toPath(),
+                destPath.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Received ranges of chunked upload, to resume it.
+    private Object getChunks(Request req, Response response) {
+        LOG.debug("Handle GET /chunks");
+        try {
+            var checkout = getCheckout(req, new JsonRepo(req.params(":repo"), null));
+            var destPath = resolveRepoFile(checkout.path, getSplat(req));
+            return respondOK(req, response, chunkedUploads.getState(
+                    destPath,
+                    getLongParam(req, "size"),
+                    getParam(req, "sha256")));
+        } catch (ClientError ex) {
+            return respondClientError(req, response, ex);
+        } catch (InterruptedException | IOException ex) {
+            return respondUnexpected(req, response, ex);
+        }
+    }
+
+    // Chunk of file at offset, body is raw chunk data. File is moved in
+    // place when all of it is received.
+    private Object putChunk(Request req, Response response) {
+        LOG.debug("Handle PUT /chunks");
+        try {
+            var checkout = getCheckout(req, new JsonRepo(req.params(":repo"), null));
+            var destPath = getRepoFile(checkout.path, getSplat(req));
+            var length = req.raw().getContentLengthLong();
+            if (length < 0 || req.headers("Content-Encoding") != null) {
+                throw new ClientError("Chunk must have Content-Length and no encoding");
+            }
+            // svn reset removes part file, it is written after queued jobs.
+            if (checkout.vcs == VCS.SVN) {
+                jobs.awaitQueued(checkout.key);
+            }
+            try (var body = Channels.newChannel(getBodyStream(req))) {
+                var state = chunkedUploads.write(
+                        destPath,
+                        getLongParam(req, "size"),
+                        getParam(req, "sha256"),
+                        getLongParam(req, "offset"),
+                        length,
+                        body,
+                        (part, dest) -> {
+                            try (var lock = lockAfterJobs(checkout.key)) {
+                                touch(checkout, dest);
+                                move(part, dest);
+                            }
+                        });
+                return respondOK(req, response, state);
+            } catch (IllegalArgumentException ex) {
+                throw new ClientError(ex.getMessage());
+            }
+        } catch (ClientError ex) {
+            return respondClientError(req, response, ex);
+        } catch (InterruptedException | IOException ex) {
+            return respondUnexpected(req, response, ex);
+        }
+    }
+
+    // Replies with entries of the manifest which differ on the server.
+    // Files are hashed before repo lock, so a large manifest does not hold
+    // up the repo. Under the lock, the cache only rehashes files changed
+    // since.
+    private Object manifest(Request req, Response response) {
+        LOG.debug("Handle /manifest");
+        try {
+            var manifest = Json.read(JsonManifest.class, getBodyStream(req));
+            if (manifest.getRepo() == null || manifest.getFiles() == null) {
+                throw new ClientError("Repo or files are missing");
+            }
+            for (var f : manifest.getFiles()) {
+                if (f == null || f.getFile() == null || f.getSHA256() == null) {
+                    throw new ClientError("File or sha256 of manifest entry is missing");
+                }
+            }
+            var checkout = getCheckout(req, manifest.getRepo());
+            // svn reset removes unversioned files, so nothing can be reused.
+            var reusable = checkout.vcs != VCS.SVN;
+            var destPaths = new ArrayList<File>();
+            for (var f : manifest.getFiles()) {
+                var destPath = resolveRepoFile(checkout.path, f.getFile());
+                if (reusable && destPath.length() == f.getSize()) {
+                    hashCache.sha256(destPath);
+                }
+                destPaths.add(destPath);
+            }
+            var changed = new ArrayList<JsonFileInfo>();
+            try (var lock = lockAfterJobs(checkout.key)) {
+                for (int i = 0; i < destPaths.size(); i++) {
+                    var f = manifest.getFiles().get(i);
+                    var destPath = destPaths.get(i);
+                    if (!reusable ||
+                            destPath.length() != f.getSize() ||
+                            !f.getSHA256().equals(hashCache.sha256(destPath))) {
+                        changed.add(f);
+                    }
+                }
+            }
+            LOG.debug("{} of {} files changed", changed.size(), manifest.getFiles().size());
+            return respondOK(req, response, new JsonManifest(manifest.getRepo(), changed));
+        } catch (ClientError ex) {
+            return respondClientError(req, response, ex);
+        } catch (InterruptedException | IOException ex) {
+            return respondUnexpected(req, response, ex);
+        }
+    }
+
+    // Diff is decoded once from the stream as UTF-8, with no tree or
+    // escaped copy of it. It is still held whole: it is parsed in memory
+    // and kept as base of the next delta. Unescaped diff is not longer
+    // than the body, which is limited as read; the check keeps it so.
+    private static JsonDiff readDiff(InputStream is, long maxSize)
+            throws ClientError, IOException {
+        var body = new StreamedJson(is);
+        if (!body.readUntil("diff")) {
+            return Json.mapper.treeToValue(body.getFields(), JsonDiff.class);
+        }
+        var diff = new ByteArrayOutputStream();
+        body.copyString(diff);
+        if (diff.size() > maxSize) {
+            throw new ClientError(413, "Diff is over {0} bytes", maxSize);
+        }
+        var diffRequest = Json.mapper.treeToValue(body.getFields(), JsonDiff.class);
+        return new JsonDiff(diffRequest.getRepo(), diff.toString(StandardCharsets.UTF_8));
+    }
+
+    // Returns full diff, rebuilt from delta if needed.
+    private String getFullDiff(Checkout checkout, JsonDiff diffRequest) throws ClientError {
+        if (diffRequest.getDelta() == null) {
+            if (diffRequest.getDiff() == null) {
+                throw new ClientError("Diff is missing");
+            }
+            return diffRequest.getDiff();
+        }
+        String diff;
+        try {
+            diff = Delta.apply(
+                    getDeltaBase(checkout, diffRequest).diff,
+                    diffRequest.getDelta(),
+                    limits.maxBodySize);
+        } catch (IllegalArgumentException ex) {
+            throw new ClientError("Invalid delta: {0}", ex.getMessage());
+        }
+        if (diff == null) {
+            throw new ClientError(413, "Diff is over {0} characters", limits.maxBodySize);
+        }
+        return diff;
+    }
+
+    // Queue of async jobs is bounded, as requests are.
+    private void checkJobs() throws ClientError {
+        if (jobs.getPending() >= limits.maxJobs) {
+            rejectedCount.get("jobs").inc();
+            throw new ClientError(503, "Server is overloaded, {0} jobs", limits.maxJobs);
+        }
+    }
+
+    private AppliedDiff getDeltaBase(Checkout checkout, JsonDiff diffRequest)
+            throws ClientError {
+        var applied = appliedDiffs.get(checkout.key);
+        if (applied == null || !applied.sha256.equals(diffRequest.getBase())) {
+            throw new ClientError(409, "Delta base not found, resend full diff");
+        }
+        return applied;
+    }
+
+    // Fails early, before the request is queued. Job checks the base again,
+    // queued jobs can change it.
+    private void checkDeltaBase(Checkout checkout, JsonDiff diffRequest) throws ClientError {
+        if (diffRequest.getDelta() != null && !jobs.isBusy(checkout.key)) {
+            getDeltaBase(checkout, diffRequest);
+        }
+    }
+
+    private void applyDiff(Checkout checkout, JsonDiff diffRequest, Timings timings)
+            throws ClientError, InterruptedException, IOException {
+        var repoPath = checkout.path;
+        var vcs = checkout.vcs;
+        String diff;
+        try (var phase = timings.start("delta")) {
+            diff = getFullDiff(checkout, diffRequest);
+        }
+        String revision;
+        try (var phase = timings.start("revision")) {
+            revision = revisionProvider.getRevision(vcs, repoPath);
+        }
+        var clientRevision = diffRequest.getRepo().getRevision();
+        if (!revision.equals(clientRevision) && !checkout.pooled) {
+            throw new ClientError(
+                    "Revision mismatch: server {0}, client {1}",
+                    revision,
+                    clientRevision);
+        }
+        // Taken after the checks, so failing requests do not wait for it.
+        RepoLocks.Held slot;
+        try (var phase = timings.start("slot")) {
+            slot = acquireApply(diffRequest.getRepo().getName());
+        }
+        try (slot) {
+            resetAndApply(
+                    checkout,
+                    diffRequest.getRepo().getName(),
+                    diff,
+                    revision,
+                    clientRevision,
+                    timings);
+        }
+    }
+
+    private void resetAndApply(
+            Checkout checkout,
+            String repoName,
+            String diff,
+            String revision,
+            String clientRevision,
+            Timings timings) throws ClientError, InterruptedException, IOException {
+        var repoPath = checkout.path;
+        var vcs = checkout.vcs;
+        // Worktree does not match any diff until apply succeeds.
+        appliedDiffs.remove(checkout.key);
+        var state = worktreeStates.remove(repoPath);
+        if (!revision.equals(clientRevision)) {
+            try (var phase = timings.start("checkout")) {
+                checkoutRevision(repoPath, clientRevision);
+            }
+            revision = clientRevision;
+        }
+        Patch patch = null;
+        try (var phase = timings.start("parse")) {
+            patch = Patch.parse(diff);
+        } catch (Patch.UnsupportedException ex) {
+            LOG.debug("Patch with script: {}", ex.getMessage());
+        }
+        if (vcs == VCS.GIT && patch != null && state != null &&
+                state.getRevision().equals(revision)) {
+            var start = System.nanoTime();
+            try (var phase = timings.start("update")) {
+                state = GitWorktree.update(repoPath, state, patch);
+            } catch (IOException ex) {
+                // Targeted reset is only a shortcut. Whatever it left half
+                // written, full reset below restores.
+                LOG.info("Targeted reset failed, resetting all: {}", ex.getMessage());
+                state = null;
+            }
+            if (state != null) {
+                applyDuration.get(repoName).observeSince(start);
+                worktreeStates.put(repoPath, state);
+                appliedDiffs.put(checkout.key, new AppliedDiff(diff));
+                return;
             }
+        }
+        var start = System.nanoTime();
+        try (var phase = timings.start("reset")) {
             Script.runShell(
                     vcs.toCmdLineString() + "/reset",
                     Arrays.asList(),
                     repoPath);
-            if (!diffRequest.getDiff().isEmpty()) {
-                var tid = Thread.currentThread().getId();
-                var diffFile = new File(MessageFormat.format(
-                        "/tmp/{0}-{1}.diff",
-                        diffRequest.getRepo().getName(),
-                        tid));
-                try (var os = new FileOutputStream(diffFile)) {
-                    os.write(diffRequest.getDiff().getBytes());
+        }
+        resetDuration.get(repoName).observeSince(start);
+        if (!diff.isEmpty()) {
+            start = System.nanoTime();
+            try (var phase = timings.start("apply")) {
+                applyPatch(vcs, repoPath, diff, patch);
+            }
+            applyDuration.get(repoName).observeSince(start);
+        }
+        if (vcs == VCS.GIT && patch != null) {
+            worktreeStates.put(repoPath, GitWorktree.State.afterReset(revision, patch));
+        }
+        appliedDiffs.put(checkout.key, new AppliedDiff(diff));
+    }
+
+    // Worktree of pool follows client revision. Commit must be in the repo
+    // already, server does not fetch.
+    private static void checkoutRevision(File repoPath, String revision)
+            throws ClientError, InterruptedException {
+        if (revision == null || !regexRevision.matcher(revision).matches()) {
+            throw new ClientError("Invalid revision: {0}", revision);
+        }
+        try {
+            Script.run(
+                    Arrays.asList("git", "checkout", "-q", "-f", "--detach", revision),
+                    repoPath,
+                    null /* stdin */);
+        } catch (IOException ex) {
+            throw new ClientError(
+                    "Revision {0} not found on server: {1}",
+                    revision,
+                    ex.getMessage());
+        }
+        LOG.debug("Checked out {} in {}", revision, repoPath);
+    }
+
+    // Reset and apply run processes and write many files at once, so their
+    // number is capped over all repos and per repo, for worktrees of pool.
+    private RepoLocks.Held acquireApply(String repoName) throws InterruptedException {
+        var repoApplies = this.repoApplies.computeIfAbsent(
+                repoName, k -> new Semaphore(limits.maxRepoApplies, true));
+        repoApplies.acquire();
+        try {
+            applies.acquire();
+        } catch (InterruptedException ex) {
+            repoApplies.release();
+            throw ex;
+        }
+        return () -> {
+            applies.release();
+            repoApplies.release();
+        };
+    }
+
+    // Writes outside of jobs go after the jobs queued before them.
+    private RepoLocks.Held lockAfterJobs(String key) throws InterruptedException {
+        jobs.awaitQueued(key);
+        return repoLocks.lock(key);
+    }
+
+    private RepoLocks.Held lockAfterJobs(String key, Timings timings)
+            throws InterruptedException {
+        try (var phase = timings.start("lock")) {
+            return lockAfterJobs(key);
+        }
+    }
+
+    // Files written through the server can be tracked, targeted reset must
+    // restore them. Called under repo lock.
+    private void touch(Checkout checkout, File file) {
+        var state = worktreeStates.get(checkout.path);
+        if (state != null) {
+            state.touch(checkout.path.toPath().relativize(file.toPath()).toString());
+        }
+    }
+
+    // Applies in process if possible, with <vcs>/apply script otherwise.
+    // Null patch means it could not be parsed.
+    private static void applyPatch(VCS vcs, File repoPath, String diff, Patch patch)
+            throws InterruptedException, IOException {
+        try {
+            if (patch != null) {
+                // svn must schedule added and deleted files
+                if (vcs == VCS.SVN &&
+                        patch.getFiles().stream().anyMatch(f -> f.isCreated() || f.isDeleted())) {
+                    throw new Patch.UnsupportedException("Files added or deleted");
                 }
-                Script.runShell(
-                        vcs.toCmdLineString() + "/apply",
-                        Arrays.asList(diffFile.getAbsolutePath()),
-                        repoPath);
+                patch.apply(repoPath);
+                LOG.debug("Patched {} files", patch.getFiles().size());
+                return;
+            }
+        } catch (Patch.UnsupportedException ex) {
+            LOG.debug("Patch with script: {}", ex.getMessage());
+        } catch (Patch.MismatchException ex) {
+            // Nothing is written yet, script gives the authoritative error.
+            LOG.info("Patch mismatch, retrying with script: {}", ex.getMessage());
+        }
+        // Script gets the patch as a file in $1, custom scripts rely on it.
+        var diffFile = File.createTempFile("jred-", ".diff");
+        try {
+            try (var os = new FileOutputStream(diffFile)) {
+                os.write(diff.getBytes(StandardCharsets.UTF_8));
             }
-            return respondOK(response);
+            Script.runShell(
+                    vcs.toCmdLineString() + "/apply",
+                    Arrays.asList(diffFile.getAbsolutePath()),
+                    repoPath);
+        } finally {
+            diffFile.delete();
+        }
+    }
+
+    private static JsonTarget getRepo(RepoMap map, JsonRepo jsonRepo) throws ClientError {
+        var repo = map.get(jsonRepo.getName());
+        if (repo == null) {
+            throw new ClientError("Repo not found: {0}", jsonRepo.getName());
+        }
+        return repo;
+    }
+
+    // Repo path, or worktree of the pool leased to the client. Old clients
+    // do not send their id, they are told apart by address.
+    private Checkout getCheckout(Request req, JsonRepo jsonRepo)
+            throws ClientError, InterruptedException, IOException {
+        var map = repoMap.get();
+        var repo = getRepo(map, jsonRepo);
+        var vcs = VCS.fromCmdLineString(repo.getVCS());
+        var pool = map.getPool(jsonRepo.getName());
+        if (pool == null) {
+            var repoPath = new File(repo.getPath()).getAbsoluteFile().getCanonicalFile();
+            return new Checkout(jsonRepo.getName(), repoPath, vcs, false);
+        }
+        var client = req.headers(Http.CLIENT_HEADER);
+        if (client == null || client.isEmpty()) {
+            client = req.ip();
+        }
+        var worktree = pool.lease(
+                client,
+                jsonRepo.getRevision(),
+                path -> revisionProvider.getRevision(vcs, path));
+        // Client retries after the 503, as when server is overloaded.
+        if (worktree == null) {
+            rejectedCount.get("worktrees").inc();
+            throw new ClientError(503, "All worktrees of {0} are leased", jsonRepo.getName());
+        }
+        return new Checkout(worktree.getKey(), worktree.getPath(), vcs, true);
+    }
+
+    private static File resolveRepoFile(File repoPath, String file)
+            throws ClientError, IOException {
+        var destPath = new File(repoPath, file).getCanonicalFile();
+        if (!destPath.toPath().startsWith(repoPath.toPath())) {
+            throw new ClientError("File outside repo directory tree: {0}", file);
+        }
+        return destPath;
+    }
+
+    // Resolves file in repo and creates parent directories.
+    private static File getRepoFile(File repoPath, String file)
+            throws ClientError, IOException {
+        var destPath = resolveRepoFile(repoPath, file);
+        destPath.getParentFile().mkdirs();
+        return destPath;
+    }
+
+    private static String getSplat(Request req) throws ClientError {
+        var splat = req.splat();
+        if (splat.length == 0 || splat[0].isEmpty()) {
+            throw new ClientError("File path is empty");
+        }
+        return splat[0];
+    }
+
+    private static String getParam(Request req, String name) throws ClientError {
+        var value = req.queryParams(name);
+        if (value == null) {
+            throw new ClientError("Parameter {0} is missing", name);
+        }
+        return value;
+    }
+
+    private static long getLongParam(Request req, String name) throws ClientError {
+        var value = getParam(req, name);
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            throw new ClientError("Parameter {0} is not a number: {1}", name, value);
+        }
+    }
+
+    // Spark caches whole body in memory unless it is chunked, so read
+    // directly from the servlet request. Decodes Content-Encoding. Body is
+    // limited before and after decoding.
+    private InputStream getBodyStream(Request req) throws ClientError, IOException {
+        ServletRequest raw = req.raw();
+        while (raw instanceof ServletRequestWrapper) {
+            raw = ((ServletRequestWrapper) raw).getRequest();
+        }
+        if (raw.getContentLengthLong() > limits.maxBodySize) {
+            throw new ClientError(413, "Body is over {0} bytes", limits.maxBodySize);
+        }
+        var body = new LimitedInputStream(raw.getInputStream(), limits.maxBodySize, receivedBytes);
+        var encoding = req.headers("Content-Encoding");
+        if (encoding == null || encoding.isEmpty()) {
+            return body;
+        }
+        var codec = Codecs.get(encoding);
+        if (codec == null) {
+            throw new ClientError("Unsupported Content-Encoding: {0}", encoding);
+        }
+        return new LimitedInputStream(codec.decode(body), limits.maxBodySize, null);
+    }
+
+    private static boolean isAsync(Request req) {
+        return "true".equals(req.queryParams("async"));
+    }
+
+    // Replies 202 with job id, result is polled at /jobs/:id.
+    private static Object respondJob(
+            Request req,
+            Response response,
+            Checkout checkout,
+            String job) throws IOException {
+        response.status(202);
+        return renderJson(req, response, new JsonStatus("", job, checkout.getPath()));
+    }
+
+    private static Object respondResult(Request req, Response response, Jobs.Result result)
+            throws IOException {
+        response.status(result.getStatus());
+        return renderJson(req, response, result.getBody());
+    }
+
+    // Time in queue is a phase of the job.
+    private String submitJob(Checkout checkout, Timings timings, JobBody body) {
+        var queued = System.nanoTime();
+        return jobs.submit(checkout.key, () -> {
+            timings.add("queue", queued);
+            return runJob(checkout, timings, body);
+        });
+    }
+
+    // Errors become result, as they would be replies of the request.
+    private static Jobs.Result runJob(Checkout checkout, Timings timings, JobBody body) {
+        try {
+            body.run();
+            return new Jobs.Result(200, checkout.getStatus(timings));
+        } catch (ClientError ex) {
+            LOG.debug("Client error {}: {}", ex.status, ex.getMessage());
+            return new Jobs.Result(ex.status, new JsonStatus(ex.getMessage()));
         } catch (InterruptedException | IOException ex) {
-            return respondUnexpected(response, ex);
+            LOG.error("Error: {}", ex.getMessage());
+            return new Jobs.Result(500, new JsonStatus(ex.getMessage()));
         }
     }
 
-    private static String respondOK(Response response)
+    private static void deleteSpool(Path spoolDir) {
+        var files = spoolDir.toFile().listFiles();
+        if (files != null) {
+            for (var f : files) {
+                f.delete();
+            }
+        }
+        spoolDir.toFile().delete();
+    }
+
+    private static Object respondOK(Request req, Response response)
             throws IOException {
-        response.status(200);
-        return renderJson(response, new JsonStatus());
+        return respondOK(req, response, new JsonStatus());
     }
 
-    private static String respondBadRequest(Response response, String format, Object... arguments)
+    private static Object respondOK(Request req, Response response, Object object)
             throws IOException {
-        response.status(400);
-        return renderJson(response, new JsonStatus(MessageFormat.format(format, arguments)));
+        response.status(200);
+        return renderJson(req, response, object);
     }
 
-    private static String respondUnexpected(Response response, Exception cause) {
+    private static Object respondClientError(Request req, Response response, ClientError cause) {
+        LOG.debug("Client error {}: {}", cause.status, cause.getMessage());
+        response.status(cause.status);
+        if (cause.status == 503) {
+            response.header("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+        }
+        try {
+            return renderJson(req, response, new JsonStatus(cause.getMessage()));
+        } catch (IOException ex) {
+            LOG.error("Fatal: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    private static Object respondUnexpected(Request req, Response response, Exception cause) {
+        if (cause instanceof BodyTooLargeException) {
+            return respondClientError(req, response, new ClientError(413, cause.getMessage()));
+        }
         LOG.error("Error: {}", cause.getMessage());
         response.status(500);
         try {
-            return renderJson(response, new JsonStatus(cause.getMessage()));
+            return renderJson(req, response, new JsonStatus(cause.getMessage()));
         } catch (IOException ex) {
             LOG.error("Fatal: {}", ex.getMessage());
             return null;
         }
     }
 
-    private static String renderJson(Response response, Object object)
+    private static Object renderJson(Request req, Response response, Object object)
             throws IOException {
         response.type(MimeType.JSON);
-        return Json.writeString(object);
+        var json = Json.mapper.writeValueAsBytes(object);
+        if (json.length < Codecs.MIN_SIZE) {
+            return json;
+        }
+        var codec = Codecs.negotiate(req.headers("Accept-Encoding"));
+        if (codec == null) {
+            return json;
+        }
+        response.header("Content-Encoding", codec.getName());
+        // Spark gzips the body itself when it sees this encoding.
+        if (GzipCodec.NAME.equals(codec.getName())) {
+            return json;
+        }
+        var os = new ByteArrayOutputStream();
+        try (var encoded = codec.encode(os)) {
+            encoded.write(json);
+        }
+        return os.toByteArray();
+    }
+
+    private interface JobBody {
+        void run() throws ClientError, InterruptedException, IOException;
+    }
+
+    private interface PartWriter {
+        void write(File part) throws IOException;
+    }
+
+    private static final class ClientError extends Exception {
+        private final int status;
+
+        ClientError(String format, Object... arguments) {
+            this(400, format, arguments);
+        }
+
+        ClientError(int status, String format, Object... arguments) {
+            super(MessageFormat.format(format, arguments));
+            this.status = status;
+        }
+    }
+
+    private static final class BodyTooLargeException extends IOException {
+        BodyTooLargeException(long limit) {
+            super(MessageFormat.format("Body is over {0} bytes", limit));
+        }
+    }
+
+    // Fails reads past the limit, counts bytes if counter is not null.
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private final Metrics.Counter counter;
+        private long count;
+
+        LimitedInputStream(InputStream is, long limit, Metrics.Counter counter) {
+            super(is);
+            this.limit = limit;
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = super.read();
+            if (b >= 0) {
+                add(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            var n = super.read(b, off, len);
+            if (n > 0) {
+                add(n);
+            }
+            return n;
+        }
+
+        private void add(int n) throws BodyTooLargeException {
+            count += n;
+            if (counter != null) {
+                counter.add(n);
+            }
+            if (count > limit) {
+                throw new BodyTooLargeException(limit);
+            }
+        }
+    }
+
+    // Where request goes. Key names it in locks, jobs and maps of state.
+    private static final class Checkout {
+        final String key;
+        final File path;
+        final VCS vcs;
+        // Worktree of pool
+        final boolean pooled;
+
+        Checkout(String key, File path, VCS vcs, boolean pooled) {
+            this.key = key;
+            this.path = path;
+            this.vcs = vcs;
+            this.pooled = pooled;
+        }
+
+        // Path is sent only for pool, client knows repo path otherwise.
+        String getPath() {
+            return pooled ? path.getPath() : null;
+        }
+
+        JsonStatus getStatus(Timings timings) {
+            return new JsonStatus("", null, getPath(), timings.get());
+        }
+    }
+
+    private static final class AppliedDiff {
+        final String diff;
+        final String sha256;
+
+        AppliedDiff(String diff) {
+            this.diff = diff;
+            this.sha256 = Hash.sha256(diff.getBytes(StandardCharsets.UTF_8));
+        }
     }
 }
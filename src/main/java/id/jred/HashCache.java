@@ -0,0 +1,48 @@
+package id.jred;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// SHA-256 of files, recomputed only when size or mtime changes.
+public final class HashCache {
+    private static final class Entry {
+        final long size;
+        final long mtime;
+        final String sha256;
+
+        Entry(long size, long mtime, String sha256) {
+            this.size = size;
+            this.mtime = mtime;
+            this.sha256 = sha256;
+        }
+    }
+
+    private final ConcurrentHashMap<File, Entry> entries = new ConcurrentHashMap<>();
+
+    // Returns null if file does not exist.
+    public String sha256(File file) throws IOException {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (IOException ex) {
+            entries.remove(file);
+            return null;
+        }
+        if (!attrs.isRegularFile()) {
+            entries.remove(file);
+            return null;
+        }
+        var size = attrs.size();
+        var mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        var entry = entries.get(file);
+        if (entry == null || entry.size != size || entry.mtime != mtime) {
+            entry = new Entry(size, mtime, Hash.sha256(file));
+            entries.put(file, entry);
+        }
+        return entry.sha256;
+    }
+}
@@ -0,0 +1,268 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public final class Http {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    // Id of client, server leases worktrees of pools by it.
+    public static final String CLIENT_HEADER = "X-Jred-Client";
+
+    public interface BodyWriter {
+        void write(OutputStream os) throws IOException;
+    }
+
+    // Server replied with an error status.
+    public static final class StatusException extends IOException {
+        private final int status;
+        // From Retry-After, negative if not given
+        private final long retryAfterMillis;
+
+        public StatusException(int status, String message, Throwable cause) {
+            this(status, message, cause, -1);
+        }
+
+        public StatusException(int status, String message, Throwable cause, long retryAfterMillis) {
+            super(message, cause);
+            this.status = status;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+
+    // Overloaded server (503) is retried with exponential backoff and full
+    // jitter, so rejected clients do not come back all at once.
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long BASE_BACKOFF_MILLIS = 200;
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+    // Larger bodies wait for 100 Continue, rejected ones are not sent.
+    private static final long EXPECT_CONTINUE_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final Codec codec;
+    private final String client;
+
+    public Http(String host, int port, Codec codec) {
+        this(host, port, codec, null);
+    }
+
+    // Null codec disables request compression. Client id can be null.
+    public Http(String host, int port, Codec codec, String client) {
+        this.host = host;
+        this.port = port;
+        this.codec = codec;
+        this.client = client;
+    }
+
+    public byte[] post(String path, Object request) throws IOException {
+        var json = Json.mapper.writeValueAsBytes(request);
+        return send("POST", path, null, MimeType.JSON, json.length, json.length, os -> os.write(json));
+    }
+
+    // Size hint is used to decide on compression only. Query can be null.
+    public byte[] post(
+            String path,
+            String query,
+            String contentType,
+            long sizeHint,
+            BodyWriter body) throws IOException {
+        return send("POST", path, query, contentType, -1, sizeHint, body);
+    }
+
+    public byte[] get(String path, String query) throws IOException {
+        return send("GET", path, query, null, 0, 0, null);
+    }
+
+    // Sends file as is, directly from the file channel. Never compressed,
+    // so large binaries are not run through the codec.
+    public byte[] put(String path, File file) throws IOException {
+        return put(path, null, file, 0, -1);
+    }
+
+    // Sends length bytes of file from offset, negative length means up to
+    // the end of file.
+    public byte[] put(String path, String query, File file, long offset, long length)
+            throws IOException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var end = length < 0 ? channel.size() : offset + length;
+            return send("PUT", path, query, MimeType.BINARY, end - offset, 0, os -> {
+                var target = Channels.newChannel(os);
+                var position = offset;
+                while (position < end) {
+                    var n = channel.transferTo(position, end - position, target);
+                    if (n <= 0) {
+                        throw new IOException("File truncated while sending: " + file);
+                    }
+                    position += n;
+                }
+            });
+        }
+    }
+
+    private URL buildUrl(String path, String query) throws IOException {
+        try {
+            return new URI(
+                    "http",
+                    null,
+                    host,
+                    port,
+                    path,
+                    query,
+                    null).toURL();
+        } catch (URISyntaxException ex) {
+            throw new IOException("Invalid URI: " + ex.getMessage());
+        }
+    }
+
+    // Negative length means unknown, body is sent in chunks. Null body means
+    // request without body. Body is written again on retry.
+    private byte[] send(
+            String method,
+            String path,
+            String query,
+            String contentType,
+            long length,
+            long sizeHint,
+            BodyWriter body) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return sendOnce(method, path, query, contentType, length, sizeHint, body);
+            } catch (StatusException ex) {
+                if (ex.getStatus() != 503 || attempt == MAX_ATTEMPTS) {
+                    throw ex;
+                }
+                var backoff = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt);
+                var delay = Math.max(
+                        ex.getRetryAfterMillis(),
+                        ThreadLocalRandom.current().nextLong(backoff + 1));
+                LOG.debug("{}: {}, retry {} in {} ms", method, ex.getMessage(), attempt, delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting to retry");
+                }
+            }
+        }
+    }
+
+    private byte[] sendOnce(
+            String method,
+            String path,
+            String query,
+            String contentType,
+            long length,
+            long sizeHint,
+            BodyWriter body) throws IOException {
+        var url = buildUrl(path, query);
+        LOG.debug("{} to {}", method, url.toString());
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("Accept", MimeType.JSON);
+            connection.setRequestProperty("Accept-Encoding", Codecs.allNamesAsString());
+            if (client != null) {
+                connection.setRequestProperty(CLIENT_HEADER, client);
+            }
+            connection.setDoInput(true);
+            if (body != null) {
+                connection.setRequestProperty("Content-Type", contentType);
+                connection.setDoOutput(true);
+                var encoder = codec != null && sizeHint >= Codecs.MIN_SIZE ? codec : null;
+                if (encoder != null) {
+                    connection.setRequestProperty("Content-Encoding", encoder.getName());
+                }
+                if (length < 0 || length >= EXPECT_CONTINUE_SIZE) {
+                    connection.setRequestProperty("Expect", "100-continue");
+                }
+                // Do not buffer whole payload, it can be large.
+                if (length >= 0 && encoder == null) {
+                    connection.setFixedLengthStreamingMode(length);
+                } else {
+                    connection.setChunkedStreamingMode(64 * 1024);
+                }
+                LOG.debug("{}: writing payload", method);
+                try (var os = encoder != null
+                        ? encoder.encode(connection.getOutputStream())
+                        : connection.getOutputStream()) {
+                    body.write(os);
+                }
+            }
+            LOG.debug("{}: reading response", method);
+            try (var is = decode(connection, connection.getInputStream())) {
+                return is.readAllBytes();
+            }
+        } catch (IOException ex) {
+            LOG.debug("{}: IO exception {}", method, ex.getMessage());
+            try (var es = connection.getErrorStream()) {
+                String msg;
+                if (es != null) {
+                    msg = Json.read(JsonStatus.class, decode(connection, es)).getMessage();
+                } else {
+                    msg = "HTTP error code: " + connection.getResponseCode();
+                }
+                throw new StatusException(
+                        connection.getResponseCode(),
+                        msg,
+                        ex,
+                        getRetryAfterMillis(connection));
+            }
+        } finally {
+            if (connection != null) {
+                LOG.debug("{}: disconnect", method);
+                connection.disconnect();
+            }
+        }
+    }
+
+    // Only delay in seconds is supported, not date.
+    private static long getRetryAfterMillis(HttpURLConnection connection) {
+        var value = connection.getHeaderField("Retry-After");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private static InputStream decode(HttpURLConnection connection, InputStream is)
+            throws IOException {
+        var encoding = connection.getHeaderField("Content-Encoding");
+        if (encoding == null || encoding.isEmpty()) {
+            return is;
+        }
+        var codec = Codecs.get(encoding);
+        if (codec == null) {
+            throw new IOException("Unsupported Content-Encoding: " + encoding);
+        }
+        return codec.decode(is);
+    }
+}
@@ -0,0 +1,152 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Work on repo worktrees, run in order of submit on a thread per repo, so
+// requests only enqueue it. Result is kept for a while after job ends, a
+// client polls it by job id. Writes outside of jobs wait for queued ones,
+// see awaitQueued.
+public final class Jobs {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    private static final long EXPIRE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // Repo thread exits when idle for this long
+    private static final long IDLE_SECONDS = 60;
+
+    // Status code and body of the reply, as if job ran in request.
+    public static final class Result {
+        private final int status;
+        private final JsonStatus body;
+
+        public Result(int status, JsonStatus body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public JsonStatus getBody() {
+            return body;
+        }
+    }
+
+    public interface Task {
+        Result run();
+    }
+
+    private static final class Job {
+        final CompletableFuture<Result> result = new CompletableFuture<>();
+        volatile long ended;
+    }
+
+    private static final class Queue {
+        final ThreadPoolExecutor executor;
+        // Last submitted job, jobs end in order of submit.
+        CompletableFuture<Result> last = CompletableFuture.completedFuture(null);
+
+        Queue(String repo) {
+            executor = new ThreadPoolExecutor(
+                    1,
+                    1,
+                    IDLE_SECONDS,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    r -> {
+                        var t = new Thread(r, "jred-job-" + repo);
+                        t.setDaemon(true);
+                        return t;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final Map<String, Queue> queues = new ConcurrentHashMap<>();
+    // Queued and running jobs of all repos
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // Returns job id.
+    public String submit(String repo, Task task) {
+        expire();
+        var id = UUID.randomUUID().toString();
+        var job = new Job();
+        jobs.put(id, job);
+        pending.incrementAndGet();
+        var queue = queues.computeIfAbsent(repo, Queue::new);
+        synchronized (queue) {
+            // Job must end whatever is thrown: writes to the repo wait for it.
+            queue.executor.execute(() -> {
+                var result = new Result(500, new JsonStatus("Job failed"));
+                try {
+                    result = task.run();
+                } catch (Throwable ex) {
+                    LOG.error("Job {} failed", id, ex);
+                    result = new Result(500, new JsonStatus(String.valueOf(ex.getMessage())));
+                } finally {
+                    job.ended = System.currentTimeMillis();
+                    pending.decrementAndGet();
+                    job.result.complete(result);
+                }
+            });
+            queue.last = job.result;
+        }
+        LOG.debug("Job {} queued for {}", id, repo);
+        return id;
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    // Null if job is unknown or expired.
+    public CompletableFuture<Result> get(String id) {
+        var job = jobs.get(id);
+        return job != null ? job.result : null;
+    }
+
+    // True if repo has queued or running jobs.
+    public boolean isBusy(String repo) {
+        var queue = queues.get(repo);
+        if (queue == null) {
+            return false;
+        }
+        synchronized (queue) {
+            return !queue.last.isDone();
+        }
+    }
+
+    // Waits for jobs submitted for repo so far.
+    public void awaitQueued(String repo) throws InterruptedException {
+        var queue = queues.get(repo);
+        if (queue == null) {
+            return;
+        }
+        CompletableFuture<Result> last;
+        synchronized (queue) {
+            last = queue.last;
+        }
+        try {
+            last.get();
+        } catch (ExecutionException ex) {
+            // Never completes exceptionally
+        }
+    }
+
+    private void expire() {
+        var now = System.currentTimeMillis();
+        jobs.values().removeIf(j -> j.result.isDone() && now - j.ended >= EXPIRE_MILLIS);
+    }
+}
@@ -0,0 +1,29 @@
+package id.jred;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// State of chunked upload: [start, end) ranges server received.
+public final class JsonChunks {
+    private List<long[]> ranges = new ArrayList<>();
+    private boolean complete;
+
+    public JsonChunks() {}
+
+    public JsonChunks(List<long[]> ranges, boolean complete) {
+        this.ranges = ranges;
+        this.complete = complete;
+    }
+
+    @JsonProperty("ranges")
+    public List<long[]> getRanges() {
+        return ranges;
+    }
+
+    @JsonProperty("complete")
+    public boolean isComplete() {
+        return complete;
+    }
+}
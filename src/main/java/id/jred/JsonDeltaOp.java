@@ -0,0 +1,38 @@
+package id.jred;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+// Either copies count lines of the base diff from start, or inserts text.
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public final class JsonDeltaOp {
+    private int start;
+    private int count;
+    private String text;
+
+    public JsonDeltaOp() {}
+
+    public JsonDeltaOp(int start, int count) {
+        this.start = start;
+        this.count = count;
+    }
+
+    public JsonDeltaOp(String text) {
+        this.text = text;
+    }
+
+    @JsonProperty("start")
+    public int getStart() {
+        return start;
+    }
+
+    @JsonProperty("count")
+    public int getCount() {
+        return count;
+    }
+
+    @JsonProperty("text")
+    public String getText() {
+        return text;
+    }
+}
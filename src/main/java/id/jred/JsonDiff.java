@@ -1,10 +1,18 @@
 package id.jred;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.List;
+
+// Carries either full diff, or delta against the diff with hash base,
+// which server applied last.
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public final class JsonDiff {
     private JsonRepo repo;
     private String diff;
+    private String base;
+    private List<JsonDeltaOp> delta;
 
     public JsonDiff() {}
 
@@ -13,6 +21,12 @@ public final class JsonDiff {
         this.diff = diff;
     }
 
+    public JsonDiff(JsonRepo repo, String base, List<JsonDeltaOp> delta) {
+        this.repo = repo;
+        this.base = base;
+        this.delta = delta;
+    }
+
     @JsonProperty("repo")
     public JsonRepo getRepo() {
         return repo;
@@ -22,4 +36,14 @@ public final class JsonDiff {
     public String getDiff() {
         return diff;
     }
+
+    @JsonProperty("base")
+    public String getBase() {
+        return base;
+    }
+
+    @JsonProperty("delta")
+    public List<JsonDeltaOp> getDelta() {
+        return delta;
+    }
 }
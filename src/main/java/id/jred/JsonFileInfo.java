@@ -0,0 +1,32 @@
+package id.jred;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+public final class JsonFileInfo {
+    private String file;
+    private long size;
+    private String sha256;
+
+    public JsonFileInfo() {}
+
+    public JsonFileInfo(String file, long size, String sha256) {
+        this.file = file;
+        this.size = size;
+        this.sha256 = sha256;
+    }
+
+    @JsonProperty("file")
+    public String getFile() {
+        return file;
+    }
+
+    @JsonProperty("size")
+    public long getSize() {
+        return size;
+    }
+
+    @JsonProperty("sha256")
+    public String getSHA256() {
+        return sha256;
+    }
+}
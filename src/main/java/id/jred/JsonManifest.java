@@ -0,0 +1,28 @@
+package id.jred;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class JsonManifest {
+    private JsonRepo repo;
+    private List<JsonFileInfo> files = new ArrayList<>();
+
+    public JsonManifest() {}
+
+    public JsonManifest(JsonRepo repo, List<JsonFileInfo> files) {
+        this.repo = repo;
+        this.files = files;
+    }
+
+    @JsonProperty("repo")
+    public JsonRepo getRepo() {
+        return repo;
+    }
+
+    @JsonProperty("files")
+    public List<JsonFileInfo> getFiles() {
+        return files;
+    }
+}
@@ -1,20 +1,62 @@
 package id.jred;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.Map;
+
 public final class JsonStatus {
     private String message;
+    // Id of job still running, see Jobs
+    private String job;
+    // Worktree of pool the request went to, see WorktreePool
+    private String path;
+    // Server phase durations in millis, see Timings
+    private Map<String, Long> timings;
 
     public JsonStatus() {
         this("");
     }
 
     public JsonStatus(String message) {
+        this(message, null);
+    }
+
+    public JsonStatus(String message, String job) {
+        this(message, job, null);
+    }
+
+    public JsonStatus(String message, String job, String path) {
+        this(message, job, path, null);
+    }
+
+    public JsonStatus(String message, String job, String path, Map<String, Long> timings) {
         this.message = message;
+        this.job = job;
+        this.path = path;
+        this.timings = timings;
     }
 
     @JsonProperty("message")
     public String getMessage() {
         return message;
     }
+
+    @JsonProperty("job")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getJob() {
+        return job;
+    }
+
+    @JsonProperty("path")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getPath() {
+        return path;
+    }
+
+    @JsonProperty("timings")
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public Map<String, Long> getTimings() {
+        return timings;
+    }
 }
@@ -2,9 +2,13 @@ package id.jred;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.util.Objects;
+
 public final class JsonTarget {
     private String path;
     private String vcs = "git";
+    // Size of worktree pool, 0 to use path itself
+    private int worktrees;
 
     public void setPath(String path) {
         this.path = path;
@@ -19,4 +23,26 @@ public final class JsonTarget {
     public String getVCS() {
         return vcs;
     }
+
+    @JsonProperty("worktrees")
+    public int getWorktrees() {
+        return worktrees;
+    }
+
+    // Reload validates changed entries only.
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof JsonTarget)) {
+            return false;
+        }
+        var other = (JsonTarget) o;
+        return Objects.equals(path, other.path) &&
+                Objects.equals(vcs, other.vcs) &&
+                worktrees == other.worktrees;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(path, vcs, worktrees);
+    }
 }
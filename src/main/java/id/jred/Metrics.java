@@ -0,0 +1,200 @@
+package id.jred;
+
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Counters, gauges and histograms exported in Prometheus text format.
+// Recording is lock-free and does not allocate: values are LongAdders and
+// histogram buckets are fixed. Metric with a label value is looked up once
+// and kept, or found in a concurrent map which does not allocate on hit.
+public final class Metrics {
+    public static final Metrics DEFAULT = new Metrics();
+
+    // Upper bounds of histogram buckets, seconds.
+    private static final double[] BUCKETS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120
+    };
+    private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+    static {
+        for (int i = 0; i < BUCKETS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        void render(StringBuilder sb, String name, String labels) {
+            sb.append(name).append(labels).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    public static final class Gauge {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void dec() {
+            value.decrement();
+        }
+
+        void render(StringBuilder sb, String name, String labels) {
+            sb.append(name).append(labels).append(' ').append(value.sum()).append('\n');
+        }
+    }
+
+    public static final class Histogram {
+        // Last one is +Inf
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(long nanos) {
+            var i = 0;
+            while (i < BUCKET_NANOS.length && nanos > BUCKET_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        // Observes time since start, which is System.nanoTime().
+        public void observeSince(long startNanos) {
+            observe(System.nanoTime() - startNanos);
+        }
+
+        void render(StringBuilder sb, String name, String labels) {
+            // Buckets are cumulative in the format
+            var count = 0L;
+            for (int i = 0; i < buckets.length; i++) {
+                count += buckets[i].sum();
+                var le = i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf";
+                sb.append(name).append("_bucket");
+                appendLabel(sb, labels, "le", le);
+                sb.append(' ').append(count).append('\n');
+            }
+            sb.append(name).append("_sum").append(labels).append(' ')
+                    .append(sumNanos.sum() / 1e9).append('\n');
+            sb.append(name).append("_count").append(labels).append(' ')
+                    .append(count).append('\n');
+        }
+    }
+
+    // Metrics of one name, by value of a single label. No label name means
+    // a single unlabeled metric.
+    public static final class Family<T> {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final String label;
+        private final Supplier<T> factory;
+        private final ConcurrentHashMap<String, T> children = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type, String label, Supplier<T> factory) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.label = label;
+            this.factory = factory;
+        }
+
+        public T get() {
+            return get("");
+        }
+
+        public T get(String labelValue) {
+            var child = children.get(labelValue);
+            if (child == null) {
+                child = children.computeIfAbsent(labelValue, k -> factory.get());
+            }
+            return child;
+        }
+
+        void render(StringBuilder sb) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            for (var e : new TreeMap<>(children).entrySet()) {
+                var labels = new StringBuilder();
+                if (label != null) {
+                    appendLabel(labels, "", label, e.getKey());
+                }
+                var child = e.getValue();
+                if (child instanceof Counter) {
+                    ((Counter) child).render(sb, name, labels.toString());
+                } else if (child instanceof Gauge) {
+                    ((Gauge) child).render(sb, name, labels.toString());
+                } else {
+                    ((Histogram) child).render(sb, name, labels.toString());
+                }
+            }
+        }
+    }
+
+    private final List<Family<?>> families = new CopyOnWriteArrayList<>();
+
+    public Family<Counter> counter(String name, String help, String label) {
+        return register(new Family<>(name, help, "counter", label, Counter::new));
+    }
+
+    public Family<Gauge> gauge(String name, String help, String label) {
+        return register(new Family<>(name, help, "gauge", label, Gauge::new));
+    }
+
+    public Family<Histogram> histogram(String name, String help, String label) {
+        return register(new Family<>(name, help, "histogram", label, Histogram::new));
+    }
+
+    private <T> Family<T> register(Family<T> family) {
+        families.add(family);
+        return family;
+    }
+
+    public String render() {
+        var sb = new StringBuilder();
+        for (var f : families) {
+            f.render(sb);
+        }
+        return sb.toString();
+    }
+
+    // Adds label to rendered label set, which is empty or "{...}".
+    private static void appendLabel(StringBuilder sb, String labels, String name, String value) {
+        if (labels.isEmpty()) {
+            sb.append('{');
+        } else {
+            sb.append(labels, 0, labels.length() - 1).append(',');
+        }
+        sb.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append("\"}");
+    }
+}
@@ -4,5 +4,8 @@ public final class MimeType {
     private MimeType() {}
 
     public static final String JSON = "application/json";
+    public static final String BINARY = "application/octet-stream";
+    public static final String BUNDLE = "application/x-jred-bundle";
     public static final String TEXT = "text/plain; charset=utf-8";
+    public static final String METRICS = "text/plain; version=0.0.4; charset=utf-8";
 }
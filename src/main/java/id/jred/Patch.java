@@ -0,0 +1,520 @@
+package id.jred;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+// Unified diff parser and applier. Understands text changes in git and svn
+// diff formats, including new and deleted files. Hunks must match exactly at
+// their positions: diffs are applied to a freshly reset worktree, so any
+// mismatch is an error, not something to fuzz around. Lines are compared
+// as bytes, line ends included.
+//
+// Apply is all-or-nothing up to writing: every file is patched in memory
+// first, then each one is replaced by atomic rename.
+public final class Patch {
+    private static final Pattern regexHunk =
+            Pattern.compile("^@@ -(\\d+)(?:,(\\d+))? \\+(\\d+)(?:,(\\d+))? @@.*$");
+    private static final String DEV_NULL = "/dev/null";
+    private static final String REGULAR_FILE_MODE = "100644";
+
+    // Fewer files are patched on the calling thread.
+    private static final int PARALLEL_MIN_FILES = 8;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            r -> {
+                var t = new Thread(r, "jred-patch");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // Patch has something we do not handle, apply it with VCS tools.
+    public static final class UnsupportedException extends IOException {
+        UnsupportedException(String format, Object... arguments) {
+            super(MessageFormat.format(format, arguments));
+        }
+    }
+
+    // Patch does not match the files.
+    public static final class MismatchException extends IOException {
+        MismatchException(String format, Object... arguments) {
+            super(MessageFormat.format(format, arguments));
+        }
+    }
+
+    private static final class Hunk {
+        final int oldStart;
+        final int oldCount;
+        // Context and removed lines, then context and added lines.
+        final List<byte[]> oldLines = new ArrayList<>();
+        final List<byte[]> newLines = new ArrayList<>();
+
+        Hunk(int oldStart, int oldCount) {
+            this.oldStart = oldStart;
+            this.oldCount = oldCount;
+        }
+    }
+
+    public static final class FilePatch {
+        private final String path;
+        private final boolean created;
+        private final boolean deleted;
+        private final List<Hunk> hunks;
+
+        FilePatch(String path, boolean created, boolean deleted, List<Hunk> hunks) {
+            this.path = path;
+            this.created = created;
+            this.deleted = deleted;
+            this.hunks = hunks;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isCreated() {
+            return created;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        // Null original means file does not exist. Returns null if file is
+        // deleted.
+        public byte[] apply(byte[] original) throws MismatchException {
+            if (created != (original == null)) {
+                throw new MismatchException(
+                        created ? "File already exists: {0}" : "File not found: {0}", path);
+            }
+            if (original == null) {
+                original = new byte[0];
+            }
+            var lineStarts = getLineStarts(original);
+            var lineCount = lineStarts.length - 1;
+            var os = new ByteArrayOutputStream(original.length);
+            var line = 0;
+            for (var hunk : hunks) {
+                // Empty old side is inserted after oldStart
+                var start = hunk.oldCount == 0 ? hunk.oldStart : hunk.oldStart - 1;
+                if (start < line || start + hunk.oldLines.size() > lineCount) {
+                    throw new MismatchException("Hunk out of range in {0}", path);
+                }
+                os.write(original, lineStarts[line], lineStarts[start] - lineStarts[line]);
+                line = start;
+                for (var expected : hunk.oldLines) {
+                    var from = lineStarts[line];
+                    var to = lineStarts[line + 1];
+                    if (!Arrays.equals(original, from, to, expected, 0, expected.length)) {
+                        throw new MismatchException(
+                                "Hunk does not match {0} at line {1}", path, line + 1);
+                    }
+                    line++;
+                }
+                for (var added : hunk.newLines) {
+                    os.write(added, 0, added.length);
+                }
+            }
+            os.write(original, lineStarts[line], original.length - lineStarts[line]);
+            if (!deleted) {
+                return os.toByteArray();
+            }
+            if (os.size() != 0) {
+                throw new MismatchException("Deleted file is not empty after patch: {0}", path);
+            }
+            return null;
+        }
+    }
+
+    private final List<FilePatch> files;
+
+    private Patch(List<FilePatch> files) {
+        this.files = files;
+    }
+
+    public List<FilePatch> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    public static Patch parse(String diff) throws UnsupportedException {
+        return new Parser(diff.getBytes(StandardCharsets.UTF_8)).parse();
+    }
+
+    public void apply(File repoPath) throws IOException {
+        var targets = new ArrayList<Path>();
+        for (var f : files) {
+            var target = new File(repoPath, f.getPath()).getCanonicalFile();
+            if (!target.toPath().startsWith(repoPath.toPath())) {
+                throw new UnsupportedException("File outside repo directory tree: {0}", f.getPath());
+            }
+            targets.add(target.toPath());
+        }
+        var patched = runAll(files.size(), i -> {
+            byte[] original;
+            try {
+                original = Files.readAllBytes(targets.get(i));
+            } catch (NoSuchFileException ex) {
+                original = null;
+            }
+            return files.get(i).apply(original);
+        });
+        runAll(files.size(), i -> {
+            if (patched.get(i) != null) {
+                write(targets.get(i), patched.get(i));
+            }
+            return null;
+        });
+        // Deleted last and on this thread: removing empty directories races
+        // with files written to them.
+        for (int i = 0; i < files.size(); i++) {
+            if (patched.get(i) == null) {
+                delete(repoPath.toPath(), targets.get(i));
+            }
+        }
+    }
+
+    static void delete(Path repoPath, Path target) throws IOException {
+        Files.delete(target);
+        // Like git apply, do not leave empty directories behind.
+        for (var dir = target.getParent();
+                dir != null && dir.startsWith(repoPath) && !dir.equals(repoPath);
+                dir = dir.getParent()) {
+            try (var entries = Files.list(dir)) {
+                if (entries.findAny().isPresent()) {
+                    break;
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    static void write(Path target, byte[] content) throws IOException {
+        Files.createDirectories(target.getParent());
+        var temp = target.resolveSibling("." + target.getFileName() + ".jred-patch");
+        try {
+            Files.write(temp, content);
+            if (Files.exists(target)) {
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                } catch (UnsupportedOperationException ex) {
+                    // Not a POSIX file system, nothing to keep.
+                }
+            }
+            Files.move(
+                    temp,
+                    target,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    interface Task<T> {
+        T run(int index) throws IOException;
+    }
+
+    static <T> List<T> runAll(int count, Task<T> task) throws IOException {
+        var results = new ArrayList<T>(count);
+        if (count < PARALLEL_MIN_FILES) {
+            for (int i = 0; i < count; i++) {
+                results.add(task.run(i));
+            }
+            return results;
+        }
+        var futures = new ArrayList<Future<T>>(count);
+        for (int i = 0; i < count; i++) {
+            var index = i;
+            futures.add(executor.submit((Callable<T>) () -> task.run(index)));
+        }
+        try {
+            for (var f : futures) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while patching");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            for (var f : futures) {
+                f.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    // Offsets of line starts, plus data length at the end.
+    private static int[] getLineStarts(byte[] data) {
+        var count = 0;
+        for (var b : data) {
+            if (b == '\n') {
+                count++;
+            }
+        }
+        var lastIncomplete = data.length > 0 && data[data.length - 1] != '\n';
+        var starts = new int[count + (lastIncomplete ? 2 : 1)];
+        var line = 1;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') {
+                starts[line++] = i + 1;
+            }
+        }
+        starts[starts.length - 1] = data.length;
+        return starts;
+    }
+
+    private static final class Parser {
+        private final byte[] data;
+        private int position;
+        // Current line, with line end
+        private int lineStart;
+        private int lineEnd;
+
+        Parser(byte[] data) {
+            this.data = data;
+        }
+
+        Patch parse() throws UnsupportedException {
+            var files = new ArrayList<FilePatch>();
+            var hasLine = nextLine();
+            while (hasLine) {
+                if (startsWith("diff --git ")) {
+                    files.add(parseFile(true));
+                } else if (startsWith("Index: ")) {
+                    files.add(parseFile(false));
+                } else if (isBlank()) {
+                    hasLine = nextLine();
+                    continue;
+                } else {
+                    throw new UnsupportedException("Unexpected line: {0}", getLine());
+                }
+                hasLine = lineStart < data.length;
+            }
+            return new Patch(files);
+        }
+
+        // Starts at section header, ends at the first line of the next one.
+        private FilePatch parseFile(boolean git) throws UnsupportedException {
+            var header = getLine();
+            String path = null;
+            var created = false;
+            var deleted = false;
+            String oldPath = null;
+            String newPath = null;
+            while (nextLine() && !startsWith("@@") && !isSectionStart()) {
+                var line = getLine();
+                if (line.startsWith("--- ")) {
+                    oldPath = getPath(line.substring(4), git ? "a/" : null);
+                } else if (line.startsWith("+++ ")) {
+                    newPath = getPath(line.substring(4), git ? "b/" : null);
+                } else if (line.startsWith("new file mode ")) {
+                    if (!line.substring(14).equals(REGULAR_FILE_MODE)) {
+                        throw new UnsupportedException("File mode: {0}", line);
+                    }
+                    created = true;
+                } else if (line.startsWith("deleted file mode ")) {
+                    deleted = true;
+                } else if (line.startsWith("index ")) {
+                    // Gitlinks and symlinks are not regular files
+                    if (line.endsWith(" 160000") || line.endsWith(" 120000")) {
+                        throw new UnsupportedException("File mode: {0}", line);
+                    }
+                } else if (!git && line.startsWith("====")) {
+                    continue;
+                } else {
+                    // Mode changes, renames, copies, binaries, properties
+                    throw new UnsupportedException("Unsupported header: {0}", line);
+                }
+            }
+            if (oldPath != null || newPath != null) {
+                if (oldPath == null || newPath == null) {
+                    throw new UnsupportedException("Incomplete header: {0}", header);
+                }
+                created = oldPath.equals(DEV_NULL);
+                deleted = newPath.equals(DEV_NULL);
+                if (!created && !deleted && !oldPath.equals(newPath)) {
+                    throw new UnsupportedException("Renamed file: {0}", header);
+                }
+                path = deleted ? oldPath : newPath;
+            } else if (git && (created || deleted)) {
+                // Empty file has no hunks, path is only in "diff --git a/<path> b/<path>"
+                path = getGitHeaderPath(header.substring(11));
+            }
+            if (path == null || path.equals(DEV_NULL)) {
+                throw new UnsupportedException("No file path: {0}", header);
+            }
+            var hunks = new ArrayList<Hunk>();
+            while (lineStart < data.length && startsWith("@@")) {
+                hunks.add(parseHunk());
+            }
+            return new FilePatch(path, created, deleted, hunks);
+        }
+
+        // Starts at hunk header, ends at the first line after hunk.
+        private Hunk parseHunk() throws UnsupportedException {
+            var header = getLine();
+            var m = regexHunk.matcher(header);
+            if (!m.matches()) {
+                throw new UnsupportedException("Invalid hunk header: {0}", header);
+            }
+            var hunk = new Hunk(
+                    Integer.parseInt(m.group(1)),
+                    m.group(2) != null ? Integer.parseInt(m.group(2)) : 1);
+            var oldLeft = hunk.oldCount;
+            var newLeft = m.group(4) != null ? Integer.parseInt(m.group(4)) : 1;
+            var last = ' ';
+            while (nextLine()) {
+                var first = isBlank() ? ' ' : (char) data[lineStart];
+                if (first == '\\') {
+                    // "\ No newline at end of file" for the previous line
+                    if (last == ' ' || last == '-') {
+                        stripLineEnd(hunk.oldLines);
+                    }
+                    if (last == ' ' || last == '+') {
+                        stripLineEnd(hunk.newLines);
+                    }
+                    continue;
+                }
+                if (oldLeft == 0 && newLeft == 0) {
+                    break;
+                }
+                var content = getContent();
+                if (first == ' ' && oldLeft > 0 && newLeft > 0) {
+                    hunk.oldLines.add(content);
+                    hunk.newLines.add(content);
+                    oldLeft--;
+                    newLeft--;
+                } else if (first == '-' && oldLeft > 0) {
+                    hunk.oldLines.add(content);
+                    oldLeft--;
+                } else if (first == '+' && newLeft > 0) {
+                    hunk.newLines.add(content);
+                    newLeft--;
+                } else {
+                    throw new UnsupportedException("Invalid hunk line: {0}", getLine());
+                }
+                last = first;
+            }
+            if (oldLeft != 0 || newLeft != 0) {
+                throw new UnsupportedException("Truncated hunk: {0}", header);
+            }
+            return hunk;
+        }
+
+        // Strips tab separated suffix and prefix, returns /dev/null as is.
+        private static String getPath(String value, String prefix)
+                throws UnsupportedException {
+            var tab = value.indexOf('\t');
+            var suffix = tab >= 0 ? value.substring(tab + 1) : "";
+            var path = tab >= 0 ? value.substring(0, tab) : value;
+            if (path.equals(DEV_NULL) ||
+                    suffix.equals("(nonexistent)") ||
+                    suffix.equals("(revision 0)")) {
+                return DEV_NULL;
+            }
+            if (path.startsWith("\"")) {
+                throw new UnsupportedException("Quoted path: {0}", path);
+            }
+            if (prefix != null) {
+                if (!path.startsWith(prefix)) {
+                    throw new UnsupportedException("Unexpected path prefix: {0}", path);
+                }
+                path = path.substring(prefix.length());
+            }
+            return path;
+        }
+
+        private static String getGitHeaderPath(String paths) throws UnsupportedException {
+            // "a/<path> b/<path>", both paths are the same
+            var length = (paths.length() - 5) / 2;
+            if (length > 0 &&
+                    paths.startsWith("a/") &&
+                    paths.startsWith(" b/", length + 2) &&
+                    paths.regionMatches(2, paths, length + 5, length) &&
+                    paths.length() == 2 * length + 5) {
+                return paths.substring(2, length + 2);
+            }
+            throw new UnsupportedException("Ambiguous paths: {0}", paths);
+        }
+
+        private static void stripLineEnd(List<byte[]> lines) {
+            var i = lines.size() - 1;
+            if (i >= 0) {
+                var line = lines.get(i);
+                lines.set(i, Arrays.copyOf(line, line.length - 1));
+            }
+        }
+
+        private boolean nextLine() {
+            if (position >= data.length) {
+                lineStart = lineEnd = data.length;
+                return false;
+            }
+            lineStart = position;
+            while (position < data.length && data[position] != '\n') {
+                position++;
+            }
+            if (position < data.length) {
+                position++;
+            }
+            lineEnd = position;
+            return true;
+        }
+
+        private boolean isSectionStart() {
+            return startsWith("diff --git ") || startsWith("Index: ");
+        }
+
+        private boolean isBlank() {
+            return lineEnd - lineStart == 0 ||
+                    (lineEnd - lineStart == 1 && data[lineStart] == '\n');
+        }
+
+        private boolean startsWith(String prefix) {
+            var bytes = prefix.getBytes(StandardCharsets.UTF_8);
+            return lineEnd - lineStart >= bytes.length &&
+                    Arrays.equals(data, lineStart, lineStart + bytes.length, bytes, 0, bytes.length);
+        }
+
+        // Line without line end, for headers.
+        private String getLine() {
+            var end = lineEnd > lineStart && data[lineEnd - 1] == '\n' ? lineEnd - 1 : lineEnd;
+            return new String(data, lineStart, end - lineStart, StandardCharsets.UTF_8);
+        }
+
+        // Hunk line without its marker, with line end.
+        private byte[] getContent() {
+            if (isBlank()) {
+                return new byte[] {'\n'};
+            }
+            var content = Arrays.copyOfRange(data, lineStart + 1, lineEnd);
+            if (data[lineEnd - 1] != '\n') {
+                // Last line of diff without line end
+                content = Arrays.copyOf(content, content.length + 1);
+                content[content.length - 1] = '\n';
+            }
+            return content;
+        }
+    }
+}
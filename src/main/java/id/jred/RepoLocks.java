@@ -0,0 +1,38 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Lock per repo: operations on one repo are ordered, different repos
+// proceed in parallel.
+public final class RepoLocks {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    // Waits longer than this are logged at info level.
+    private static final long SLOW_WAIT_MILLIS = 100;
+
+    public interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final ConcurrentHashMap<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+    public Held lock(String repo) throws InterruptedException {
+        // Fair, so clients are served in order of arrival
+        var lock = locks.computeIfAbsent(repo, k -> new ReentrantLock(true));
+        var start = System.nanoTime();
+        lock.lockInterruptibly();
+        var waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        if (waited >= SLOW_WAIT_MILLIS) {
+            LOG.info("Repo {} lock waited {} ms, queue {}", repo, waited, lock.getQueueLength());
+        } else {
+            LOG.debug("Repo {} lock waited {} ms", repo, waited);
+        }
+        return lock::unlock;
+    }
+}
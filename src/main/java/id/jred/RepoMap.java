@@ -0,0 +1,167 @@
+package id.jred;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+// Validated ~/.jred/repo_map with worktree pools of its entries. Never
+// changed: reload builds a new one, so a request sees the same map for its
+// whole run. Entries which did not change since the previous map are not
+// validated again and keep their pools with leases.
+public final class RepoMap {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    public static final String FILE_NAME = "repo_map";
+
+    private final Map<String, JsonTarget> targets;
+    private final Map<String, WorktreePool> pools;
+
+    private RepoMap(Map<String, JsonTarget> targets, Map<String, WorktreePool> pools) {
+        this.targets = Collections.unmodifiableMap(targets);
+        this.pools = Collections.unmodifiableMap(pools);
+    }
+
+    public Map<String, JsonTarget> getTargets() {
+        return targets;
+    }
+
+    // Null if repo is unknown.
+    public JsonTarget get(String name) {
+        return targets.get(name);
+    }
+
+    // Null if repo has no pool.
+    public WorktreePool getPool(String name) {
+        return pools.get(name);
+    }
+
+    // Reads and validates repo_map, entries are validated in parallel.
+    // Previous can be null.
+    public static RepoMap load(RepoMap previous) throws InterruptedException, IOException {
+        Map<String, JsonTarget> targets = Json.mapper.readValue(
+                new File(Dir.getHome(), FILE_NAME),
+                new TypeReference<HashMap<String, JsonTarget>>() {});
+        substituteEnvVars(targets);
+
+        var pools = new HashMap<String, WorktreePool>();
+        var changed = new ArrayList<String>();
+        for (var e : targets.entrySet()) {
+            if (previous != null && e.getValue().equals(previous.targets.get(e.getKey()))) {
+                var pool = previous.pools.get(e.getKey());
+                if (pool != null) {
+                    pools.put(e.getKey(), pool);
+                }
+            } else {
+                changed.add(e.getKey());
+            }
+        }
+        LOG.debug("Validating {} of {} repos", changed.size(), targets.size());
+        if (!changed.isEmpty()) {
+            var executor = Executors.newFixedThreadPool(
+                    Math.min(changed.size(), Runtime.getRuntime().availableProcessors()));
+            try {
+                var futures = new ArrayList<Future<WorktreePool>>();
+                for (var name : changed) {
+                    futures.add(executor.submit(() -> validate(name, targets.get(name))));
+                }
+                for (int i = 0; i < changed.size(); i++) {
+                    var pool = get(futures.get(i));
+                    if (pool != null) {
+                        pools.put(changed.get(i), pool);
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        return new RepoMap(targets, pools);
+    }
+
+    // Package-private for benchmarks.
+    static void substituteEnvVars(Map<String, JsonTarget> repoMap) throws IOException {
+        var pattern = Pattern.compile("\\$\\{(.+?)}");
+        var env = System.getenv();
+        for (var r : repoMap.values()) {
+            if (r.getPath() == null) {
+                throw ioException("Repo path is missing");
+            }
+            var matcher = pattern.matcher(r.getPath());
+            var error = new String[1];
+            var subst = matcher.replaceAll(m -> {
+                var g = m.group(1);
+                if (env.containsKey(g)) {
+                    return env.get(g);
+                }
+                if (error[0] == null) error[0] = g;
+                return "";
+            });
+            if (error[0] != null) {
+                // IO error because path is not valid
+                throw ioException("Unknown env variable: {0}", error[0]);
+            }
+            r.setPath(subst);
+        }
+    }
+
+    // Returns worktree pool of the repo, or null if it has none.
+    private static WorktreePool validate(String name, JsonTarget target)
+            throws InterruptedException, IOException {
+        VCS vcs;
+        try {
+            vcs = VCS.fromCmdLineString(target.getVCS());
+        } catch (IllegalArgumentException ex) {
+            throw ioException("Unsupported VCS of {0}: {1}", name, target.getVCS());
+        }
+        switch (vcs) {
+        case GIT: {
+            var vcsDir = "." + vcs.toCmdLineString();
+            if (!new File(new File(target.getPath()), vcsDir).exists()) {
+                throw ioException("git repo not found in {0}", target.getPath());
+            }
+        }
+        case SVN: {
+            if (!new File(target.getPath()).exists()) {
+                throw ioException("svn repo not found in {0}", target.getPath());
+            }
+            break;
+        }
+        default:
+            throw ioException("Unsupported VCS: {0}", vcs);
+        }
+        if (target.getWorktrees() <= 0) {
+            return null;
+        }
+        if (vcs != VCS.GIT) {
+            throw ioException("Worktree pool needs git repo: {0}", name);
+        }
+        var repoPath = new File(target.getPath()).getAbsoluteFile().getCanonicalFile();
+        return WorktreePool.create(name, repoPath, target.getWorktrees());
+    }
+
+    private static <T> T get(Future<T> future) throws InterruptedException, IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private static IOException ioException(String format, Object... arguments) {
+        return new IOException(MessageFormat.format(format, arguments));
+    }
+}
@@ -0,0 +1,342 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Watches repo tree recursively, except VCS directory and directories git
+// ignores, so build output and dependencies do not use up watches. Changes
+// of ignored files are dropped. If watches run out or events are lost, it
+// polls instead: the tree is scanned again and compared with size and
+// mtime of files seen so far.
+public final class RepoWatcher implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    private static final long POLL_MILLIS = 1000;
+
+    private final Path root;
+    // Null when polling
+    private WatchService watchService;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final Set<Path> ignoredDirs = new HashSet<>();
+    // Directories and files under watch, files with size and mtime
+    private Set<Path> dirs = new HashSet<>();
+    private Map<Path, List<Long>> files = new HashMap<>();
+
+    public RepoWatcher(File repoDir) throws InterruptedException, IOException {
+        this.root = repoDir.toPath();
+        ignoredDirs.addAll(findIgnoredDirs(null));
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try {
+            register(root, null);
+            LOG.debug("Watching {} directories, {} ignored", keys.size(), ignoredDirs.size());
+        } catch (IOException ex) {
+            startPolling(ex.getMessage());
+        }
+    }
+
+    // Blocks until something changes, then collects changes until there
+    // are none for quietMillis, but not longer than maxMillis. Returns
+    // changed files, never empty.
+    public Set<File> take(long quietMillis, long maxMillis) throws InterruptedException, IOException {
+        while (true) {
+            var changed = watchService != null ? takeEvents(quietMillis, maxMillis) : poll();
+            var ignored = findIgnored(changed);
+            var result = new HashSet<File>();
+            for (var p : changed) {
+                if (!ignored.contains(p)) {
+                    result.add(p.toFile());
+                }
+            }
+            if (!result.isEmpty()) {
+                return result;
+            }
+        }
+    }
+
+    private Set<Path> takeEvents(long quietMillis, long maxMillis)
+            throws InterruptedException, IOException {
+        var changed = new HashSet<Path>();
+        var key = watchService.take();
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        while (key != null) {
+            var lost = processKey(key, changed);
+            if (lost != null) {
+                changed.addAll(startPolling(lost));
+                break;
+            }
+            var left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                break;
+            }
+            key = watchService.poll(Math.min(quietMillis, left), TimeUnit.MILLISECONDS);
+        }
+        return changed;
+    }
+
+    // Returns why events were lost, or null.
+    private String processKey(WatchKey key, Set<Path> changed)
+            throws InterruptedException, IOException {
+        var dir = keys.get(key);
+        String lost = null;
+        for (var event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                lost = "events overflow";
+                continue;
+            }
+            if (dir == null) {
+                continue;
+            }
+            var path = dir.resolve((Path) event.context());
+            if (isIgnored(path)) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE &&
+                    Files.isDirectory(path)) {
+                // Files could appear before the directory is registered
+                ignoredDirs.addAll(findIgnoredDirs(root.relativize(path).toString()));
+                try {
+                    register(path, changed);
+                } catch (IOException ex) {
+                    lost = ex.getMessage();
+                }
+            } else {
+                files.remove(path);
+                var stamp = getStamp(path);
+                if (stamp != null) {
+                    files.put(path, stamp);
+                }
+                changed.add(path);
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+        return lost;
+    }
+
+    private Set<Path> poll() throws InterruptedException, IOException {
+        while (true) {
+            Thread.sleep(POLL_MILLIS);
+            var changed = rescan();
+            if (!changed.isEmpty()) {
+                return changed;
+            }
+        }
+    }
+
+    // Returns files changed since they were last seen.
+    private Set<Path> startPolling(String reason) throws InterruptedException, IOException {
+        LOG.info("Watching files failed, polling every {} ms: {}", POLL_MILLIS, reason);
+        watchService.close();
+        watchService = null;
+        keys.clear();
+        return rescan();
+    }
+
+    // Returns files created, changed or deleted since the last scan.
+    private Set<Path> rescan() throws InterruptedException, IOException {
+        var scannedDirs = new HashSet<Path>();
+        var scanned = new HashMap<Path, List<Long>>();
+        scan(scannedDirs, scanned);
+        // Directory which is new can be ignored, as build output is.
+        if (!dirs.containsAll(scannedDirs) &&
+                ignoredDirs.addAll(findIgnoredDirs(null))) {
+            scannedDirs.clear();
+            scanned.clear();
+            scan(scannedDirs, scanned);
+        }
+        var changed = new HashSet<Path>();
+        for (var e : scanned.entrySet()) {
+            if (!e.getValue().equals(files.get(e.getKey()))) {
+                changed.add(e.getKey());
+            }
+        }
+        for (var f : files.keySet()) {
+            if (!scanned.containsKey(f)) {
+                changed.add(f);
+            }
+        }
+        dirs = scannedDirs;
+        files = scanned;
+        return changed;
+    }
+
+    private void scan(Set<Path> scannedDirs, Map<Path, List<Long>> scanned) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) {
+                if (isIgnored(d)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                scannedDirs.add(d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    scanned.put(f, getStamp(attrs));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path f, IOException ex) {
+                // Deleted while walking
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private boolean isIgnored(Path path) {
+        var relative = root.relativize(path);
+        return (relative.getNameCount() > 0 && relative.getName(0).toString().equals(".git")) ||
+                ignoredDirs.contains(path);
+    }
+
+    // Directories git ignores as a whole, under pathspec or everywhere if
+    // it is null. ls-files also lists untracked directories which only
+    // have ignored files, check-ignore leaves those which are ignored.
+    private Set<Path> findIgnoredDirs(String pathspec) throws InterruptedException, IOException {
+        var command = new ArrayList<>(Arrays.asList(
+                "git", "--literal-pathspecs", "ls-files",
+                "--others", "--ignored", "--exclude-standard", "--directory", "-z"));
+        if (pathspec != null) {
+            command.add("--");
+            command.add(pathspec);
+        }
+        var candidates = new ArrayList<String>();
+        for (var p : runGit(command, null)) {
+            if (p.endsWith("/")) {
+                candidates.add(p);
+            }
+        }
+        var result = new HashSet<Path>();
+        for (var p : checkIgnore(candidates)) {
+            result.add(root.resolve(p));
+        }
+        return result;
+    }
+
+    // Files which git ignores, deleted ones too.
+    private Set<Path> findIgnored(Collection<Path> paths) throws InterruptedException, IOException {
+        var relative = new ArrayList<String>();
+        for (var p : paths) {
+            relative.add(root.relativize(p).toString());
+        }
+        var result = new HashSet<Path>();
+        for (var p : checkIgnore(relative)) {
+            result.add(root.resolve(p));
+        }
+        return result;
+    }
+
+    private List<String> checkIgnore(List<String> paths) throws InterruptedException, IOException {
+        if (paths.isEmpty()) {
+            return paths;
+        }
+        var input = new StringBuilder();
+        for (var p : paths) {
+            input.append(p).append('\0');
+        }
+        // Exit code 1 means none is ignored
+        return runGit(
+                Arrays.asList("sh", "-c", "git check-ignore -z --stdin; test $? -le 1"),
+                input.toString());
+    }
+
+    // Output is NUL separated, warnings on stderr are not part of it.
+    private List<String> runGit(List<String> command, String stdin)
+            throws InterruptedException, IOException {
+        var output = new String(
+                Script.runBytes(command, root.toFile(), stdin),
+                StandardCharsets.UTF_8);
+        var result = new ArrayList<String>();
+        for (var p : output.split("\0")) {
+            if (!p.isEmpty()) {
+                result.add(p);
+            }
+        }
+        return result;
+    }
+
+    private void register(Path dir, Set<Path> found) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs)
+                    throws IOException {
+                if (isIgnored(d)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                var key = d.register(
+                        watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                keys.put(key, d);
+                dirs.add(d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    files.put(f, getStamp(attrs));
+                }
+                if (found != null) {
+                    found.add(f);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path f, IOException ex) {
+                // Deleted while walking
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Null if not a regular file.
+    private static List<Long> getStamp(Path path) {
+        try {
+            var attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return attrs.isRegularFile() ? getStamp(attrs) : null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private static List<Long> getStamp(BasicFileAttributes attrs) {
+        return Arrays.asList(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// Resolves repo revision without running <vcs>/revision script. Git HEAD is
+// read from HEAD, loose refs and packed-refs. For svn the script output is
+// cached until wc.db changes. Cache entries are checked with stat of the
+// files revision was read from, which is much cheaper than a process.
+// Formats we do not know (reftable, for example) fall back to the script.
+public final class RevisionProvider {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    private static final Pattern regexObjectId = Pattern.compile("^[0-9a-f]{40}([0-9a-f]{24})?$");
+    private static final int MAX_SYMREF_DEPTH = 5;
+
+    private static final class Entry {
+        final String revision;
+        final List<Path> sources;
+        final List<Object> stamps;
+
+        Entry(String revision, List<Path> sources) {
+            this.revision = revision;
+            this.sources = sources;
+            this.stamps = getStamps(sources);
+        }
+
+        boolean isValid() {
+            return stamps.equals(getStamps(sources));
+        }
+    }
+
+    private final ConcurrentHashMap<File, Entry> cache = new ConcurrentHashMap<>();
+
+    public String getRevision(VCS vcs, File repoPath)
+            throws InterruptedException, IOException {
+        var entry = cache.get(repoPath);
+        if (entry != null && entry.isValid()) {
+            return entry.revision;
+        }
+        switch (vcs) {
+        case GIT:
+            entry = readGitHead(repoPath);
+            break;
+        case SVN:
+            entry = readSvnRevision(repoPath);
+            break;
+        default:
+            break;
+        }
+        if (entry == null) {
+            LOG.debug("Revision of {} from script", repoPath);
+            cache.remove(repoPath);
+            return runScript(vcs, repoPath);
+        }
+        cache.put(repoPath, entry);
+        return entry.revision;
+    }
+
+    private static String runScript(VCS vcs, File repoPath)
+            throws InterruptedException, IOException {
+        return Script.runShell(
+                vcs.toCmdLineString() + "/revision",
+                Collections.emptyList(),
+                repoPath).trim();
+    }
+
+    // Reads twice: if a ref changed between the first read and stat, we
+    // would cache stale revision with fresh stamps.
+    private static Entry readGitHead(File repoPath) throws IOException {
+        var entry = resolveGitHead(repoPath);
+        if (entry == null) {
+            return null;
+        }
+        var check = resolveGitHead(repoPath);
+        if (check == null ||
+                !check.revision.equals(entry.revision) ||
+                !check.sources.equals(entry.sources)) {
+            return null;
+        }
+        return entry;
+    }
+
+    // Returns null if repo layout is not supported.
+    private static Entry resolveGitHead(File repoPath) throws IOException {
+        var sources = new ArrayList<Path>();
+        var dotGit = repoPath.toPath().resolve(".git");
+        var gitDir = dotGit;
+        if (Files.isRegularFile(dotGit)) {
+            sources.add(dotGit);
+            // Linked worktree or submodule: "gitdir: <path>"
+            var content = readTrimmed(dotGit);
+            if (content == null || !content.startsWith("gitdir:")) {
+                return null;
+            }
+            gitDir = repoPath.toPath().resolve(content.substring(7).trim()).normalize();
+        }
+        var commonDir = gitDir;
+        var commonDirFile = gitDir.resolve("commondir");
+        sources.add(commonDirFile);
+        var commonDirContent = readTrimmed(commonDirFile);
+        if (commonDirContent != null) {
+            commonDir = gitDir.resolve(commonDirContent).normalize();
+        }
+
+        var headFile = gitDir.resolve("HEAD");
+        sources.add(headFile);
+        var value = readTrimmed(headFile);
+        for (int depth = 0; value != null && value.startsWith("ref:"); depth++) {
+            if (depth == MAX_SYMREF_DEPTH) {
+                return null;
+            }
+            var ref = value.substring(4).trim();
+            var looseRef = gitDir.resolve(ref);
+            sources.add(looseRef);
+            value = readTrimmed(looseRef);
+            if (value == null && !commonDir.equals(gitDir)) {
+                looseRef = commonDir.resolve(ref);
+                sources.add(looseRef);
+                value = readTrimmed(looseRef);
+            }
+            if (value == null) {
+                var packedRefs = commonDir.resolve("packed-refs");
+                sources.add(packedRefs);
+                value = findPackedRef(packedRefs, ref);
+            }
+        }
+        if (value == null || !regexObjectId.matcher(value).matches()) {
+            return null;
+        }
+        return new Entry(value, sources);
+    }
+
+    private static String findPackedRef(Path packedRefs, String ref) throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(packedRefs, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        for (var line : lines) {
+            if (line.startsWith("#") || line.startsWith("^")) {
+                continue;
+            }
+            var space = line.indexOf(' ');
+            if (space > 0 && line.substring(space + 1).equals(ref)) {
+                return line.substring(0, space);
+            }
+        }
+        return null;
+    }
+
+    // Working copy format is SQLite, so revision still comes from the
+    // script, but only after wc.db changes.
+    private static Entry readSvnRevision(File repoPath)
+            throws InterruptedException, IOException {
+        var wcDb = repoPath.toPath().resolve(".svn").resolve("wc.db");
+        if (!Files.isRegularFile(wcDb)) {
+            return null;
+        }
+        var sources = List.of(wcDb);
+        var stamps = getStamps(sources);
+        var revision = runScript(VCS.SVN, repoPath);
+        var entry = new Entry(revision, sources);
+        // Changed while script was running, do not trust it.
+        return stamps.equals(entry.stamps) ? entry : null;
+    }
+
+    // Returns null if file does not exist.
+    private static String readTrimmed(Path path) throws IOException {
+        try {
+            return new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+        } catch (NoSuchFileException ex) {
+            return null;
+        } catch (IOException ex) {
+            // Directory in place of ref file, for example
+            if (Files.exists(path)) {
+                return null;
+            }
+            throw ex;
+        }
+    }
+
+    private static List<Object> getStamps(List<Path> sources) {
+        var stamps = new ArrayList<Object>();
+        for (var p : sources) {
+            try {
+                var attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                stamps.add(Arrays.asList(
+                        attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                        attrs.size(),
+                        attrs.fileKey()));
+            } catch (IOException ex) {
+                stamps.add(null);
+            }
+        }
+        return stamps;
+    }
+}
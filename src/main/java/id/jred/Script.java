@@ -3,18 +3,64 @@ package id.jred;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+// Runs commands and ~/.jred scripts asynchronously. Every command has a
+// deadline, after which it is killed with all its children, and an output
+// cap. Output is decoded as it comes and streamed to a writer.
 public final class Script {
     private static final Logger LOG = LoggerFactory.getLogger("jred");
 
     private Script() {}
 
+    public static final class Limits {
+        public final long timeoutMillis;
+        public final long maxOutputSize;
+
+        public Limits(long timeoutMillis, long maxOutputSize) {
+            this.timeoutMillis = timeoutMillis;
+            this.maxOutputSize = maxOutputSize;
+        }
+    }
+
+    public static final Limits DEFAULT_LIMITS =
+            new Limits(TimeUnit.MINUTES.toMillis(10), 256L * 1024 * 1024);
+
+    private static final Metrics.Family<Metrics.Counter> runCount = Metrics.DEFAULT.counter(
+            "jred_script_runs_total", "Commands run, in new process or shell helper.", "mode");
+    private static final Metrics.Family<Metrics.Counter> failureCount = Metrics.DEFAULT.counter(
+            "jred_script_failures_total", "Commands failed or timed out.", "mode");
+    private static final Metrics.Family<Metrics.Histogram> runDuration =
+            Metrics.DEFAULT.histogram(
+                    "jred_script_duration_seconds", "Command run time.", "mode");
+
+    // Output in error message is cut to its tail.
+    private static final int ERROR_OUTPUT_SIZE = 64 * 1024;
+
     private static final List<String> SHELL = new ArrayList<>();
     static {
         if (System.getenv().containsKey("JRED_SHELL")) {
@@ -25,49 +71,429 @@ public final class Script {
         }
     }
 
+    // Threads block on process output, one per running command.
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        var t = new Thread(r, "jred-script");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                var t = new Thread(r, "jred-script-timer");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // Null unless server enabled it. Custom JRED_SHELL disables the pool.
+    private static volatile ShellPool shellPool;
+
+    public static void enableShellPool(long idleTimeoutMillis) {
+        if (!System.getenv().containsKey("JRED_SHELL")) {
+            shellPool = new ShellPool(idleTimeoutMillis);
+        }
+    }
+
     public static String runShell(String name, List<String> args, File workDir)
             throws InterruptedException, IOException {
-        var command = new ArrayList<>(SHELL);
-        command.add(new File(Dir.getHome(), name).toString());
-        command.addAll(args);
-        return run(command, workDir, null /* stdin */);
+        return await(runShellAsync(name, args, workDir));
+    }
+
+    public static String runShell(String name, List<String> args, File workDir, String stdin)
+            throws InterruptedException, IOException {
+        return await(runShellAsync(name, args, workDir, stdin));
     }
 
     public static String run(List<String> command, File workDir, String stdin)
             throws InterruptedException, IOException {
-        Process process = null;
+        return await(runAsync(command, workDir, stdin));
+    }
+
+    public static CompletableFuture<String> runShellAsync(
+            String name,
+            List<String> args,
+            File workDir) {
+        return runShellAsync(name, args, workDir, (String) null);
+    }
+
+    public static CompletableFuture<String> runShellAsync(
+            String name,
+            List<String> args,
+            File workDir,
+            String stdin) {
+        var output = new StringWriter();
+        return toOutput(
+                runShellAsync(name, args, workDir, stdin, DEFAULT_LIMITS, output),
+                output);
+    }
+
+    public static CompletableFuture<String> runAsync(
+            List<String> command,
+            File workDir,
+            String stdin) {
+        var output = new StringWriter();
+        return toOutput(runAsync(command, workDir, stdin, DEFAULT_LIMITS, output), output);
+    }
+
+    public static CompletableFuture<Void> runShellAsync(
+            String name,
+            List<String> args,
+            File workDir,
+            Limits limits,
+            Writer output) {
+        return runShellAsync(name, args, workDir, null /* stdin */, limits, output);
+    }
+
+    // Shell helpers have no stdin, so commands with input get a process.
+    public static CompletableFuture<Void> runShellAsync(
+            String name,
+            List<String> args,
+            File workDir,
+            String stdin,
+            Limits limits,
+            Writer output) {
+        var script = new File(Dir.getHome(), name).toString();
+        var pool = shellPool;
+        if (pool == null || stdin != null) {
+            var command = new ArrayList<>(SHELL);
+            command.add(script);
+            command.addAll(args);
+            return runAsync(command, workDir, stdin, limits, output);
+        }
+        var poolArgs = new ArrayList<String>();
+        poolArgs.add(script);
+        poolArgs.addAll(args);
+        var commandLine = String.join(" ", poolArgs);
+        var result = newResult(commandLine, limits, "helper");
+        executor.execute(() -> {
+            var sink = new Sink(commandLine, limits, output);
+            try {
+                LOG.debug("Run `{}` in {} with shell helper", commandLine, workDir);
+                var exitCode = pool.run(poolArgs, workDir, sink, result);
+                sink.close();
+                complete(result, commandLine, exitCode, sink);
+            } catch (IOException | RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+
+    // Null stdin means no input.
+    public static CompletableFuture<Void> runAsync(
+            List<String> command,
+            File workDir,
+            String stdin,
+            Limits limits,
+            Writer output) {
+        var sink = new Sink(String.join(" ", command), limits, output);
+        return start(command, workDir, stdin, limits, sink, sink);
+    }
+
+    // Only stdout goes to output, stderr goes to error message. Warnings of
+    // a command which succeeds do not mix with output that is parsed.
+    public static CompletableFuture<Void> runStdoutAsync(
+            List<String> command,
+            File workDir,
+            Limits limits,
+            Writer output) {
+        var commandLine = String.join(" ", command);
+        var sink = new Sink(commandLine, limits, output);
+        var errors = new Sink(commandLine, limits, Writer.nullWriter());
+        return start(command, workDir, null /* stdin */, limits, sink, errors);
+    }
+
+    public static byte[] runBytes(List<String> command, File workDir, String stdin)
+            throws InterruptedException, IOException {
+        return await(runBytesAsync(command, workDir, stdin, DEFAULT_LIMITS));
+    }
+
+    // Output is kept as is, for binary data such as git objects. Errors
+    // are read apart from it and only go to error message.
+    public static CompletableFuture<byte[]> runBytesAsync(
+            List<String> command,
+            File workDir,
+            String stdin,
+            Limits limits) {
+        var commandLine = String.join(" ", command);
+        var output = new Buffer(commandLine, limits);
+        var errors = new Sink(commandLine, limits, Writer.nullWriter());
+        var result = start(command, workDir, stdin, limits, output, errors);
+        var future = result.thenApply(v -> output.toByteArray());
+        future.whenComplete((v, ex) -> {
+            if (ex != null) {
+                result.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    // Stderr goes to output if errors is the output.
+    private static CompletableFuture<Void> start(
+            List<String> command,
+            File workDir,
+            String stdin,
+            Limits limits,
+            OutputStream output,
+            Sink errors) {
+        var commandLine = String.join(" ", command);
+        LOG.debug("Run `{}` in {}", commandLine, workDir);
+        var pb = new ProcessBuilder(command);
+        pb.redirectErrorStream(output == errors);
+        pb.directory(workDir); // Accepts null
+        Process process;
         try {
-            LOG.debug("Run `{}` in {}", String.join(" ", command), workDir.toString());
-            var pb = new ProcessBuilder(command);
-            pb.redirectErrorStream(true);
-            pb.directory(workDir); // Accepts null
-            LOG.debug("Starting process");
             process = pb.start();
-            if (stdin != null) {
-                LOG.debug("Sending stdin");
-                process.getOutputStream().write(stdin.getBytes());
+        } catch (IOException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        var result = newResult(commandLine, limits, "process");
+        result.whenComplete((v, ex) -> {
+            if (ex != null) {
+                killTree(process);
+            }
+        });
+        if (stdin != null) {
+            // Separate thread: process can block on output before it reads
+            // all of stdin. Encoded as it is written, stdin can be large.
+            executor.execute(() -> {
+                try (var os = new OutputStreamWriter(
+                        process.getOutputStream(), StandardCharsets.UTF_8)) {
+                    os.write(stdin);
+                } catch (IOException ex) {
+                    // Exit code tells what happened
+                    LOG.debug("Writing stdin: {}", ex.getMessage());
+                }
+            });
+        } else {
+            try {
                 process.getOutputStream().close();
+            } catch (IOException ex) {
+                LOG.debug("Closing stdin: {}", ex.getMessage());
             }
-            LOG.debug("Reading stdout/stderr");
-            var output = new String(process.getInputStream().readAllBytes());
+        }
+        var errorsRead = output == errors
+                ? CompletableFuture.completedFuture(null)
+                : CompletableFuture.runAsync(() -> {
+                    try (var es = process.getErrorStream()) {
+                        es.transferTo(errors);
+                        errors.close();
+                    } catch (IOException ex) {
+                        LOG.debug("Reading stderr: {}", ex.getMessage());
+                    }
+                }, executor);
+        executor.execute(() -> {
+            try (var is = process.getInputStream()) {
+                is.transferTo(output);
+                output.close();
+                var exitCode = process.waitFor();
+                LOG.debug("Process exit code {}", exitCode);
+                errorsRead.join();
+                complete(result, commandLine, exitCode, errors);
+            } catch (InterruptedException | IOException | RuntimeException ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
 
-            LOG.debug("Waiting to finish...");
-            var exitCode = process.waitFor();
-            LOG.debug("Process exit code {}", exitCode);
-            if (exitCode != 0) {
-                // Normal IO with process is not possible.
+    // Waits for future, unwraps its exception.
+    public static <T> T await(CompletableFuture<T> future)
+            throws InterruptedException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw ex;
+        } catch (CancellationException ex) {
+            throw new IOException("Command cancelled");
+        } catch (ExecutionException ex) {
+            var cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    // Children first: once parent is gone they are orphans and could be
+    // missed. Descendants are listed before anything is killed.
+    static void killTree(Process process) {
+        var descendants = process.descendants().collect(Collectors.toList());
+        process.destroyForcibly();
+        descendants.forEach(ProcessHandle::destroyForcibly);
+    }
+
+    private static CompletableFuture<String> toOutput(
+            CompletableFuture<Void> result,
+            StringWriter output) {
+        var future = result.thenApply(v -> output.toString());
+        // Cancel of dependent future does not reach the command otherwise.
+        future.whenComplete((v, ex) -> {
+            if (ex != null) {
+                result.cancel(true);
+            }
+        });
+        return future;
+    }
+
+    private static CompletableFuture<Void> newResult(
+            String commandLine,
+            Limits limits,
+            String mode) {
+        var start = System.nanoTime();
+        var event = new Timings.CommandEvent();
+        event.begin();
+        runCount.get(mode).inc();
+        var result = new CompletableFuture<Void>();
+        var timeout = timer.schedule(
+                () -> result.completeExceptionally(new IOException(MessageFormat.format(
+                        "`{0}` timed out after {1} ms",
+                        commandLine,
+                        Long.toString(limits.timeoutMillis)))),
+                limits.timeoutMillis,
+                TimeUnit.MILLISECONDS);
+        result.whenComplete((v, ex) -> {
+            timeout.cancel(false);
+            runDuration.get(mode).observeSince(start);
+            if (ex != null) {
+                failureCount.get(mode).inc();
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.commandLine = commandLine;
+                event.mode = mode;
+                event.failed = ex != null;
+                event.commit();
+            }
+        });
+        return result;
+    }
+
+    private static void complete(
+            CompletableFuture<Void> result,
+            String commandLine,
+            int exitCode,
+            Sink sink) {
+        if (exitCode == 0) {
+            result.complete(null);
+            return;
+        }
+        result.completeExceptionally(new IOException(MessageFormat.format(
+                "`{0}` exit code {1}:\n{2}",
+                commandLine,
+                exitCode,
+                sink.getTail())));
+    }
+
+    // Output as is, up to the limit.
+    private static final class Buffer extends OutputStream {
+        private final String commandLine;
+        private final long maxSize;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        Buffer(String commandLine, Limits limits) {
+            this.commandLine = commandLine;
+            this.maxSize = limits.maxOutputSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (data.size() + (long) len > maxSize) {
                 throw new IOException(MessageFormat.format(
-                        "`{0}` exit code {1}:\n{2}",
-                        String.join(" ", command),
-                        exitCode,
-                        output));
+                        "Output of `{0}` exceeds {1} bytes", commandLine, Long.toString(maxSize)));
             }
-            return output;
-        } finally {
-            if (process != null) {
-                LOG.debug("Destroy process");
-                process.destroy();
+            data.write(b, off, len);
+        }
+
+        byte[] toByteArray() {
+            return data.toByteArray();
+        }
+    }
+
+    // Decodes output incrementally, a multibyte character can be split
+    // between writes. Keeps output tail for error messages.
+    private static final class Sink extends OutputStream {
+        private final String commandLine;
+        private final long maxSize;
+        private final Writer output;
+        private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer in = ByteBuffer.allocate(8 * 1024);
+        private final CharBuffer out = CharBuffer.allocate(8 * 1024);
+        private final StringBuilder tail = new StringBuilder();
+        private long size;
+
+        Sink(String commandLine, Limits limits, Writer output) {
+            this.commandLine = commandLine;
+            this.maxSize = limits.maxOutputSize;
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            size += len;
+            if (size > maxSize) {
+                throw new IOException(MessageFormat.format(
+                        "Output of `{0}` exceeds {1} bytes", commandLine, Long.toString(maxSize)));
+            }
+            while (len > 0) {
+                var n = Math.min(len, in.remaining());
+                in.put(b, off, n);
+                off += n;
+                len -= n;
+                in.flip();
+                decode(false);
+                in.compact();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.flip();
+            decode(true);
+            while (decoder.flush(out).isOverflow()) {
+                drain();
+            }
+            drain();
+            output.flush();
+        }
+
+        String getTail() {
+            return tail.toString();
+        }
+
+        private void decode(boolean endOfInput) throws IOException {
+            while (decoder.decode(in, out, endOfInput).isOverflow()) {
+                drain();
+            }
+            drain();
+        }
+
+        private void drain() throws IOException {
+            out.flip();
+            output.append(out);
+            tail.append(out);
+            if (tail.length() > ERROR_OUTPUT_SIZE * 2) {
+                tail.delete(0, tail.length() - ERROR_OUTPUT_SIZE);
             }
+            out.clear();
         }
     }
 }
@@ -0,0 +1,139 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.text.MessageFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Server side of the app. Kept out of App, so client commands do not load
+// Spark and Jetty classes.
+public final class Server {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    // Editors save in several writes, reload waits for a pause this long.
+    private static final long RELOAD_QUIET_MILLIS = 200;
+
+    // Requests over maxRequests and async jobs over maxJobs are answered
+    // with 503 at once. Worker threads must outnumber admitted requests,
+    // so there are threads left to reject the rest.
+    public static final class Limits {
+        public final int maxThreads;
+        public final int maxRequests;
+        public final int maxJobs;
+        // Concurrent reset and apply, over all repos and per repo
+        public final int maxApplies;
+        public final int maxRepoApplies;
+        public final long maxBodySize;
+
+        public Limits(
+                int maxThreads,
+                int maxRequests,
+                int maxJobs,
+                int maxApplies,
+                int maxRepoApplies,
+                long maxBodySize) {
+            this.maxThreads = maxThreads;
+            this.maxRequests = maxRequests;
+            this.maxJobs = maxJobs;
+            this.maxApplies = maxApplies;
+            this.maxRepoApplies = maxRepoApplies;
+            this.maxBodySize = maxBodySize;
+        }
+    }
+
+    public static final Limits DEFAULT_LIMITS = new Limits(
+            64,
+            48,
+            256,
+            Runtime.getRuntime().availableProcessors(),
+            2,
+            1L << 30);
+
+    private Server() {}
+
+    // Zero helperIdleSeconds disables shell helpers.
+    public static void start(String host, int port, int helperIdleSeconds, Limits limits)
+            throws InterruptedException, IOException {
+        if (limits.maxRequests <= 0 || limits.maxRequests >= limits.maxThreads) {
+            throw new IOException(MessageFormat.format(
+                    "Max requests must be from 1 to max threads - 1: {0}, threads {1}",
+                    limits.maxRequests,
+                    limits.maxThreads));
+        }
+        if (limits.maxJobs <= 0 || limits.maxApplies <= 0 || limits.maxRepoApplies <= 0) {
+            throw new IOException("Max jobs and applies must be positive");
+        }
+
+        LOG.debug("Reading repo_map");
+        var repoMap = new AtomicReference<>(RepoMap.load(null /* previous */));
+        watchRepoMap(repoMap);
+
+        if (helperIdleSeconds > 0) {
+            Script.enableShellPool(TimeUnit.SECONDS.toMillis(helperIdleSeconds));
+        }
+
+        LOG.debug("Start server host={} port={}", host, port);
+        Handlers.start(host, port, repoMap::get, limits);
+    }
+
+    // Reloads repo_map when it changes. If the new one is not valid, the
+    // previous stays.
+    private static void watchRepoMap(AtomicReference<RepoMap> repoMap) throws IOException {
+        var watchService = FileSystems.getDefault().newWatchService();
+        // Directory is watched, editors replace the file.
+        Dir.getHome().toPath().register(
+                watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        var thread = new Thread(() -> {
+            try {
+                while (true) {
+                    var changed = isRepoMapChanged(watchService.take());
+                    WatchKey key;
+                    while ((key = watchService.poll(
+                            RELOAD_QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                        changed |= isRepoMapChanged(key);
+                    }
+                    if (changed) {
+                        reload(repoMap);
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                LOG.debug("Stopped watching repo_map");
+            }
+        }, "jred-repo-map");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static boolean isRepoMapChanged(WatchKey key) {
+        var changed = false;
+        for (var event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW ||
+                    ((Path) event.context()).toString().equals(RepoMap.FILE_NAME)) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private static void reload(AtomicReference<RepoMap> repoMap) throws InterruptedException {
+        try {
+            var loaded = RepoMap.load(repoMap.get());
+            // Only this thread sets it
+            repoMap.set(loaded);
+            LOG.info("repo_map reloaded, {} repos", loaded.getTargets().size());
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("repo_map not reloaded, previous is kept: {}", ex.getMessage());
+        }
+    }
+}
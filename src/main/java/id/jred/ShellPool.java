@@ -0,0 +1,268 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Long-lived bash helpers kept per working dir, each runs one command at a
+// time. Scripts from ~/.jred are sourced in a subshell of the helper, so there is
+// no process start and no bash startup per command.
+//
+// Request: NUL terminated argument count, then NUL terminated arguments
+// (script path first). Reply: command output, then "\n<token> <exit code>\n".
+// Output is streamed as it comes, only a possible marker prefix is held back.
+public final class ShellPool {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    private static final String DRIVER = String.join("\n",
+            "while IFS= read -r -d '' n; do",
+            "  if ((n == 0)); then printf '\\n%s 0\\n' \"$JRED_TOKEN\"; continue; fi",
+            "  args=()",
+            "  for ((i = 0; i < n; i++)); do IFS= read -r -d '' a; args+=(\"$a\"); done",
+            "  (set -e; . \"${args[@]}\") < /dev/null 2>&1",
+            "  printf '\\n%s %d\\n' \"$JRED_TOKEN\" $?",
+            "done");
+
+    private static final Metrics.Counter startCount = Metrics.DEFAULT.counter(
+            "jred_shell_helpers_started_total", "Shell helper processes started.", null).get();
+
+    private static final byte[] NEW_LINE = {'\n'};
+    private static final int MAX_IDLE_PER_DIR = 2;
+
+    // Helper idle for longer is pinged before use.
+    private static final long PING_AFTER_MILLIS = 10_000;
+
+    private final long idleTimeoutMillis;
+    private final Map<File, Deque<Helper>> idle = new HashMap<>();
+    private final ScheduledExecutorService reaper;
+
+    public ShellPool(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, "jred-shell-reaper");
+            t.setDaemon(true);
+            return t;
+        });
+        var period = Math.max(idleTimeoutMillis / 2, 1000);
+        reaper.scheduleWithFixedDelay(this::closeIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Writes output to the stream, returns exit code. If outcome completes
+    // exceptionally while command runs (timeout, cancel), helper is killed
+    // with the whole process tree.
+    public int run(List<String> args, File workDir, OutputStream output, CompletableFuture<?> outcome)
+            throws IOException {
+        var helper = lease(workDir);
+        var running = new AtomicBoolean(true);
+        outcome.whenComplete((r, ex) -> {
+            if (ex != null) {
+                helper.abort(running);
+            }
+        });
+        var healthy = false;
+        try {
+            var exitCode = helper.run(args, output);
+            healthy = true;
+            return exitCode;
+        } finally {
+            synchronized (helper) {
+                running.set(false);
+            }
+            if (healthy) {
+                release(helper);
+            } else {
+                helper.close();
+            }
+        }
+    }
+
+    private Helper lease(File workDir) throws IOException {
+        while (true) {
+            Helper helper;
+            synchronized (this) {
+                var helpers = idle.get(workDir);
+                helper = helpers != null ? helpers.pollFirst() : null;
+            }
+            if (helper == null) {
+                return new Helper(workDir);
+            }
+            if (helper.isHealthy()) {
+                return helper;
+            }
+            LOG.debug("Restarting unhealthy shell helper in {}", workDir);
+            helper.close();
+        }
+    }
+
+    private void release(Helper helper) {
+        synchronized (this) {
+            var helpers = idle.computeIfAbsent(helper.workDir, k -> new ArrayDeque<>());
+            if (helpers.size() < MAX_IDLE_PER_DIR) {
+                helpers.addFirst(helper);
+                return;
+            }
+        }
+        helper.close();
+    }
+
+    private void closeIdle() {
+        var expired = new ArrayList<Helper>();
+        var now = System.currentTimeMillis();
+        synchronized (this) {
+            for (var helpers : idle.values()) {
+                helpers.removeIf(h -> {
+                    if (now - h.lastUsed < idleTimeoutMillis) {
+                        return false;
+                    }
+                    expired.add(h);
+                    return true;
+                });
+            }
+            idle.values().removeIf(Deque::isEmpty);
+        }
+        for (var h : expired) {
+            LOG.debug("Closing idle shell helper in {}", h.workDir);
+            h.close();
+        }
+    }
+
+    private static final class Helper {
+        final File workDir;
+        final Process process;
+        final byte[] marker;
+        long lastUsed = System.currentTimeMillis();
+
+        Helper(File workDir) throws IOException {
+            this.workDir = workDir;
+            var token = UUID.randomUUID().toString();
+            this.marker = ("\n" + token + " ").getBytes(StandardCharsets.UTF_8);
+            var pb = new ProcessBuilder("/bin/bash", "-c", DRIVER);
+            pb.environment().put("JRED_TOKEN", token);
+            pb.redirectErrorStream(true);
+            pb.directory(workDir);
+            LOG.debug("Starting shell helper in {}", workDir);
+            this.process = pb.start();
+            startCount.inc();
+        }
+
+        boolean isHealthy() {
+            if (!process.isAlive()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - lastUsed < PING_AFTER_MILLIS) {
+                return true;
+            }
+            try {
+                return run(Collections.emptyList(), OutputStream.nullOutputStream()) == 0;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+
+        int run(List<String> args, OutputStream output) throws IOException {
+            var os = process.getOutputStream();
+            writeField(os, Integer.toString(args.size()));
+            for (var a : args) {
+                writeField(os, a);
+            }
+            os.flush();
+            var exitCode = readReply(process.getInputStream(), output);
+            lastUsed = System.currentTimeMillis();
+            return exitCode;
+        }
+
+        synchronized void abort(AtomicBoolean running) {
+            if (running.get()) {
+                LOG.debug("Killing shell helper in {}", workDir);
+                Script.killTree(process);
+            }
+        }
+
+        private static void writeField(OutputStream os, String field) throws IOException {
+            if (field.indexOf('\0') >= 0) {
+                throw new IOException("NUL in argument: " + field);
+            }
+            os.write(field.getBytes(StandardCharsets.UTF_8));
+            os.write(0);
+        }
+
+        private int readReply(InputStream is, OutputStream output) throws IOException {
+            var data = new byte[64 * 1024];
+            var length = 0;
+            var markerAt = -1;
+            while (true) {
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+                var n = is.read(data, length, data.length - length);
+                if (n < 0) {
+                    throw new EOFException("Shell helper exited");
+                }
+                length += n;
+                if (markerAt < 0) {
+                    markerAt = indexOf(data, length, marker, 0);
+                    if (markerAt < 0) {
+                        // Tail can be the start of marker
+                        var keep = Math.min(length, marker.length - 1);
+                        output.write(data, 0, length - keep);
+                        System.arraycopy(data, length - keep, data, 0, keep);
+                        length = keep;
+                        continue;
+                    }
+                }
+                var codeFrom = markerAt + marker.length;
+                var codeTo = indexOf(data, length, NEW_LINE, codeFrom);
+                if (codeTo < 0) {
+                    continue;
+                }
+                if (codeTo + 1 != length) {
+                    throw new IOException("Unexpected output after reply");
+                }
+                var code = new String(data, codeFrom, codeTo - codeFrom, StandardCharsets.UTF_8);
+                output.write(data, 0, markerAt);
+                try {
+                    return Integer.parseInt(code);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Invalid exit code: " + code);
+                }
+            }
+        }
+
+        private static int indexOf(byte[] data, int length, byte[] pattern, int from) {
+            outer:
+            for (int i = from; i <= length - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (data[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        void close() {
+            Script.killTree(process);
+        }
+    }
+}
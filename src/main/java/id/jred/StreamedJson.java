@@ -0,0 +1,280 @@
+package id.jred;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+
+// Reads JSON object with one large string field without holding the
+// string in memory. Fields before the large one are read as a tree, then
+// the string is unescaped in chunks to an output stream as UTF-8, then the
+// rest of the fields are read.
+//
+// Jackson decodes strings lazily: after VALUE_STRING token, its buffer
+// starts right after the opening quote. The buffer is taken back with
+// releaseBuffered and the string is decoded here. Parsing resumes with a
+// new parser over the remaining bytes, prefixed with `{"":null` to make
+// them a valid object.
+public final class StreamedJson {
+    private static final byte[] RESUME_PREFIX = "{\"\":null".getBytes(StandardCharsets.UTF_8);
+
+    private final ObjectNode fields = Json.mapper.createObjectNode();
+    private InputStream input;
+    private JsonParser parser;
+    private boolean atString;
+
+    public StreamedJson(InputStream input) throws IOException {
+        this.input = input;
+        this.parser = Json.mapper.getFactory().createParser(input);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("JSON object expected");
+        }
+    }
+
+    // Reads fields until the named string field. Returns false if there is
+    // no such field or it is not a string: then all fields are read.
+    public boolean readUntil(String name) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.getCurrentName();
+            var token = parser.nextToken();
+            if (field.equals(name) && token == JsonToken.VALUE_STRING) {
+                atString = true;
+                return true;
+            }
+            fields.set(field, parser.readValueAsTree());
+        }
+        checkEnd();
+        return false;
+    }
+
+    // Fields read so far, without the large one.
+    public ObjectNode getFields() {
+        return fields;
+    }
+
+    // Writes the string as UTF-8, then reads the rest of fields.
+    public void copyString(OutputStream os) throws IOException {
+        if (!atString) {
+            throw new IllegalStateException("Not at string field");
+        }
+        atString = false;
+        var buffered = new ByteArrayOutputStream();
+        if (parser.releaseBuffered(buffered) < 0) {
+            // Not a byte based parser, input is not UTF-8: decode as usual.
+            os.write(parser.getText().getBytes(StandardCharsets.UTF_8));
+        } else {
+            var decoder = new StringDecoder(os);
+            var rest = decoder.decode(new SequenceInputStream(
+                    new ByteArrayInputStream(buffered.toByteArray()), input));
+            var resumed = new ByteArrayOutputStream();
+            resumed.write(RESUME_PREFIX);
+            resumed.write(rest);
+            input = new SequenceInputStream(new ByteArrayInputStream(resumed.toByteArray()), input);
+            parser = Json.mapper.getFactory().createParser(input);
+            parser.nextToken(); // {
+            parser.nextToken(); // ""
+            parser.nextToken(); // null
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            var field = parser.getCurrentName();
+            parser.nextToken();
+            fields.set(field, parser.readValueAsTree());
+        }
+        checkEnd();
+    }
+
+    private void checkEnd() throws IOException {
+        if (parser.currentToken() != JsonToken.END_OBJECT) {
+            throw new IOException("Invalid JSON object");
+        }
+    }
+
+    // Unescapes JSON string content up to the closing quote. Escapes can
+    // span reads, so state is kept between bytes.
+    private static final class StringDecoder {
+        private final OutputStream os;
+        private final byte[] out = new byte[64 * 1024];
+        private int outLength;
+        private boolean escape;
+        // Hex digits left of \\u escape, or -1
+        private int hexLeft = -1;
+        private int codeUnit;
+        private int highSurrogate = -1;
+
+        StringDecoder(OutputStream os) {
+            this.os = os;
+        }
+
+        // Returns bytes read after the closing quote.
+        byte[] decode(InputStream is) throws IOException {
+            var buffer = new byte[64 * 1024];
+            while (true) {
+                var n = is.read(buffer);
+                if (n < 0) {
+                    throw new EOFException("Unterminated JSON string");
+                }
+                var end = process(buffer, n);
+                if (end >= 0) {
+                    flush();
+                    var rest = new byte[n - end];
+                    System.arraycopy(buffer, end, rest, 0, rest.length);
+                    return rest;
+                }
+            }
+        }
+
+        // Returns position after the closing quote, or -1 if not reached.
+        private int process(byte[] data, int length) throws IOException {
+            var i = 0;
+            while (i < length) {
+                if (hexLeft > 0) {
+                    codeUnit = codeUnit * 16 + hexValue(data[i++]);
+                    if (--hexLeft == 0) {
+                        hexLeft = -1;
+                        putCodeUnit(codeUnit);
+                    }
+                    continue;
+                }
+                if (escape) {
+                    escape = false;
+                    var c = data[i++];
+                    if (c == 'u') {
+                        hexLeft = 4;
+                        codeUnit = 0;
+                        continue;
+                    }
+                    putByte(unescape(c));
+                    continue;
+                }
+                // Plain bytes are already UTF-8, copy the whole run.
+                var start = i;
+                while (i < length && data[i] != '"' && data[i] != '\\') {
+                    i++;
+                }
+                if (i > start) {
+                    putBytes(data, start, i - start);
+                }
+                if (i == length) {
+                    break;
+                }
+                if (data[i++] == '"') {
+                    putPendingSurrogate();
+                    return i;
+                }
+                escape = true;
+            }
+            return -1;
+        }
+
+        private static byte unescape(byte c) throws IOException {
+            switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            default:
+                throw new IOException("Invalid JSON escape: \\" + (char) c);
+            }
+        }
+
+        private static int hexValue(byte c) throws IOException {
+            var v = Character.digit(c, 16);
+            if (v < 0) {
+                throw new IOException("Invalid JSON \\u escape");
+            }
+            return v;
+        }
+
+        private void putCodeUnit(int unit) throws IOException {
+            if (Character.isHighSurrogate((char) unit)) {
+                putPendingSurrogate();
+                highSurrogate = unit;
+                return;
+            }
+            if (Character.isLowSurrogate((char) unit)) {
+                if (highSurrogate < 0) {
+                    putByte((byte) '?');
+                    return;
+                }
+                var high = highSurrogate;
+                highSurrogate = -1;
+                putCodePoint(Character.toCodePoint((char) high, (char) unit));
+                return;
+            }
+            putPendingSurrogate();
+            putCodePoint(unit);
+        }
+
+        // Lone surrogate is written as '?', like String.getBytes does.
+        private void putPendingSurrogate() throws IOException {
+            if (highSurrogate >= 0) {
+                highSurrogate = -1;
+                putByte((byte) '?');
+            }
+        }
+
+        private void putCodePoint(int cp) throws IOException {
+            if (cp < 0x80) {
+                putByte((byte) cp);
+            } else if (cp < 0x800) {
+                putByte((byte) (0xc0 | (cp >> 6)));
+                putByte((byte) (0x80 | (cp & 0x3f)));
+            } else if (cp < 0x10000) {
+                putByte((byte) (0xe0 | (cp >> 12)));
+                putByte((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                putByte((byte) (0x80 | (cp & 0x3f)));
+            } else {
+                putByte((byte) (0xf0 | (cp >> 18)));
+                putByte((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                putByte((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                putByte((byte) (0x80 | (cp & 0x3f)));
+            }
+        }
+
+        private void putByte(byte b) throws IOException {
+            putPendingSurrogate();
+            if (outLength == out.length) {
+                flush();
+            }
+            out[outLength++] = b;
+        }
+
+        private void putBytes(byte[] data, int offset, int length) throws IOException {
+            putPendingSurrogate();
+            if (length > out.length - outLength) {
+                flush();
+                if (length >= out.length) {
+                    os.write(data, offset, length);
+                    return;
+                }
+            }
+            System.arraycopy(data, offset, out, outLength, length);
+            outLength += length;
+        }
+
+        private void flush() throws IOException {
+            if (outLength > 0) {
+                os.write(out, 0, outLength);
+                outLength = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package id.jred;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Durations of request phases, in order they started. Every phase is also
+// a JFR event, so a recording of production submits shows where the time
+// went without debug logs. Events cost next to nothing unless recorded.
+public final class Timings {
+    @Name("id.jred.Phase")
+    @Label("jred Phase")
+    @Category("jred")
+    @StackTrace(false)
+    public static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        // Endpoint, or client command
+        @Label("Request")
+        String request;
+    }
+
+    @Name("id.jred.Command")
+    @Label("jred Command")
+    @Category("jred")
+    @StackTrace(false)
+    public static final class CommandEvent extends Event {
+        @Label("Command Line")
+        String commandLine;
+
+        @Label("Mode")
+        String mode;
+
+        @Label("Failed")
+        boolean failed;
+    }
+
+    // Ends the phase, does not throw.
+    public interface Phase extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final String request;
+    // Millis by phase, phase run twice is summed up
+    private final Map<String, Long> millis = new LinkedHashMap<>();
+
+    public Timings(String request) {
+        this.request = request;
+    }
+
+    public Phase start(String phase) {
+        var event = new PhaseEvent();
+        event.begin();
+        var start = System.nanoTime();
+        return () -> {
+            add(phase, start);
+            event.end();
+            if (event.shouldCommit()) {
+                event.phase = phase;
+                event.request = request;
+                event.commit();
+            }
+        };
+    }
+
+    // Phase which started at start nanos and ends now, for waits which
+    // begin in one place and end in another, such as job queue.
+    public synchronized void add(String phase, long start) {
+        var elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        millis.merge(phase, elapsed, Long::sum);
+    }
+
+    // Adds timings reported by the other side, phase names are prefixed.
+    public synchronized void addAll(String prefix, Map<String, Long> other) {
+        if (other != null) {
+            other.forEach((phase, ms) -> millis.merge(prefix + phase, ms, Long::sum));
+        }
+    }
+
+    public synchronized Map<String, Long> get() {
+        return new LinkedHashMap<>(millis);
+    }
+}
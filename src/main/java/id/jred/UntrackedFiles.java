@@ -0,0 +1,131 @@
+package id.jred;
+
+import java.io.File;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+// Lists untracked files which are not ignored, with git ls-files. It
+// prints paths relative to repo dir, each ends with NUL and nothing is
+// quoted. Git warnings go to stderr and exit code is still 0, so only
+// stdout is parsed. Output is parsed as it comes, and batches of paths are checked
+// in parallel meanwhile. Directories (nested repos) and files deleted
+// since are skipped. Paths keep the order of output.
+public final class UntrackedFiles {
+    private static final int BATCH_SIZE = 512;
+
+    private UntrackedFiles() {}
+
+    public static CompletableFuture<List<File>> list(File repoDir) {
+        var parser = new Parser(repoDir);
+        var run = Script.runStdoutAsync(
+                Arrays.asList("git", "ls-files", "--others", "--exclude-standard", "-z"),
+                repoDir,
+                Script.DEFAULT_LIMITS,
+                parser);
+        var result = run.thenCompose(v -> parser.finish());
+        // Cancel of dependent future does not reach the command otherwise.
+        result.whenComplete((v, ex) -> {
+            if (ex != null) {
+                run.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    // Package-private for benchmarks.
+    static final class Parser extends Writer {
+        private final File repoDir;
+        private final StringBuilder path = new StringBuilder();
+        private List<String> batch = new ArrayList<>(BATCH_SIZE);
+        private final List<CompletableFuture<List<File>>> checks = new ArrayList<>();
+
+        Parser(File repoDir) {
+            this.repoDir = repoDir;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            scan(CharBuffer.wrap(cbuf), off, off + len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            scan(str, off, off + len);
+        }
+
+        @Override
+        public Writer append(CharSequence csq) {
+            scan(csq, 0, csq.length());
+            return this;
+        }
+
+        @Override
+        public Writer append(CharSequence csq, int start, int end) {
+            scan(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+
+        // Completes when all paths are checked. Call after output ends.
+        CompletableFuture<List<File>> finish() {
+            if (path.length() > 0) {
+                addPath();
+            }
+            if (!batch.isEmpty()) {
+                checkBatch();
+            }
+            return CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[0]))
+                    .thenApply(v -> {
+                        var files = new ArrayList<File>();
+                        for (var c : checks) {
+                            files.addAll(c.join());
+                        }
+                        return files;
+                    });
+        }
+
+        private void scan(CharSequence s, int start, int end) {
+            var from = start;
+            for (int i = start; i < end; i++) {
+                if (s.charAt(i) == '\0') {
+                    path.append(s, from, i);
+                    addPath();
+                    from = i + 1;
+                }
+            }
+            path.append(s, from, end);
+        }
+
+        private void addPath() {
+            batch.add(path.toString());
+            path.setLength(0);
+            if (batch.size() == BATCH_SIZE) {
+                checkBatch();
+            }
+        }
+
+        private void checkBatch() {
+            var paths = batch;
+            batch = new ArrayList<>(BATCH_SIZE);
+            checks.add(CompletableFuture.supplyAsync(() -> {
+                var files = new ArrayList<File>(paths.size());
+                for (var p : paths) {
+                    var f = new File(repoDir, p);
+                    if (f.isFile()) {
+                        files.add(f);
+                    }
+                }
+                return files;
+            }));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package id.jred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Git worktrees of a repo_map entry, so submits of different clients
+// reset and apply in parallel. Worktrees live in ~/.jred/worktrees/<repo>
+// and are leased to clients. A client keeps its worktree while it submits,
+// the lease ends after it is idle for a while. A new client gets a free
+// worktree, which is at its revision if there is one. A worktree under
+// lease is never taken over: if all are leased, the client gets none
+// until a lease ends.
+public final class WorktreePool {
+    private static final Logger LOG = LoggerFactory.getLogger("jred");
+
+    private static final long LEASE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    public interface RevisionReader {
+        String read(File path) throws InterruptedException, IOException;
+    }
+
+    // Leased worktree. Key names it in locks, jobs and per repo state.
+    public static final class Worktree {
+        private final String key;
+        private final File path;
+        private String client;
+        private long lastUsed;
+
+        private Worktree(String key, File path) {
+            this.key = key;
+            this.path = path;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public File getPath() {
+            return path;
+        }
+    }
+
+    private final List<Worktree> worktrees = new ArrayList<>();
+    private final Map<String, Worktree> leases = new HashMap<>();
+
+    private WorktreePool() {}
+
+    // Adds worktrees which are missing. Existing are kept as they are.
+    public static WorktreePool create(String name, File repoPath, int size)
+            throws InterruptedException, IOException {
+        var pool = new WorktreePool();
+        var dir = new File(new File(Dir.getHome(), "worktrees"), name);
+        // Registrations of deleted worktrees block adding them again.
+        Script.run(Arrays.asList("git", "worktree", "prune"), repoPath, null /* stdin */);
+        for (int i = 0; i < size; i++) {
+            var path = new File(dir, Integer.toString(i)).getAbsoluteFile();
+            if (!new File(path, ".git").exists()) {
+                LOG.info("Adding worktree {}", path);
+                dir.mkdirs();
+                Script.run(
+                        Arrays.asList("git", "worktree", "add", "--detach", path.getPath()),
+                        repoPath,
+                        null /* stdin */);
+            }
+            pool.worktrees.add(new Worktree(name + "/" + i, path.getCanonicalFile()));
+        }
+        return pool;
+    }
+
+    // Returns worktree of the client, leases one if it has none. Null if all
+    // are leased to others. Revision can be null if client did not send it.
+    public synchronized Worktree lease(String client, String revision, RevisionReader reader)
+            throws InterruptedException, IOException {
+        var now = System.currentTimeMillis();
+        var worktree = leases.get(client);
+        if (worktree == null) {
+            worktree = findFree(revision, reader, now);
+            if (worktree == null) {
+                LOG.info("All {} worktrees leased, none for {}", worktrees.size(), client);
+                return null;
+            }
+            if (worktree.client != null) {
+                LOG.debug("Lease of worktree {} by {} expired", worktree.key, worktree.client);
+                leases.remove(worktree.client);
+            }
+            worktree.client = client;
+            leases.put(client, worktree);
+            LOG.debug("Worktree {} leased to {}", worktree.key, client);
+        }
+        worktree.lastUsed = now;
+        return worktree;
+    }
+
+    // Free worktree at revision, or free one idle for the longest time, or
+    // null. Worktree is free if its lease expired.
+    private Worktree findFree(String revision, RevisionReader reader, long now)
+            throws InterruptedException, IOException {
+        Worktree oldestFree = null;
+        for (var w : worktrees) {
+            if (w.client != null && now - w.lastUsed < LEASE_MILLIS) {
+                continue;
+            }
+            if (revision != null && revision.equals(reader.read(w.path))) {
+                return w;
+            }
+            if (oldestFree == null || w.lastUsed < oldestFree.lastUsed) {
+                oldestFree = w;
+            }
+        }
+        return oldestFree;
+    }
+}
@@ -0,0 +1,98 @@
+package id.jred;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+final class BundleTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsWhatWasWritten() throws Exception {
+        var random = new Random(20191003);
+        var big = new byte[200 * 1024];
+        random.nextBytes(big);
+        var files = new LinkedHashMap<String, byte[]>();
+        files.put("empty", new byte[0]);
+        files.put("big.bin", big);
+        files.put("sub dir/with space.txt", "text\n".getBytes(StandardCharsets.UTF_8));
+        files.put("sub dir/nested/crlf.bin", new byte[]{0, -1, '\n', '\r'});
+        var bundle = write(new JsonDiff(new JsonRepo("repo", "abc"), "diff --git a/x b/x\n"), files);
+
+        var reader = new Bundle.Reader(new ByteArrayInputStream(bundle));
+        var header = reader.readHeader();
+        assertEquals("repo", header.getRepo().getName());
+        assertEquals("abc", header.getRepo().getRevision());
+        assertEquals("diff --git a/x b/x\n", header.getDiff());
+        for (var e : files.entrySet()) {
+            assertEquals(new File(e.getKey()).getPath(), reader.nextFile());
+            var data = new ByteArrayOutputStream();
+            reader.copyFile(data);
+            assertArrayEquals(e.getValue(), data.toByteArray(), e.getKey());
+        }
+        assertNull(reader.nextFile());
+    }
+
+    @Test
+    void rejectsTruncatedBundle() throws Exception {
+        var data = new byte[1000];
+        var bundle = write(new JsonDiff(new JsonRepo("repo", "abc"), ""), Map.of("f", data));
+        var reader = new Bundle.Reader(
+                new ByteArrayInputStream(Arrays.copyOf(bundle, bundle.length - 600)));
+        reader.readHeader();
+        reader.nextFile();
+        assertThrows(EOFException.class, () -> reader.copyFile(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void rejectsInvalidMagic() throws Exception {
+        var bundle = write(new JsonDiff(new JsonRepo("repo", "abc"), ""), Map.of());
+        bundle[0] = '{';
+        var reader = new Bundle.Reader(new ByteArrayInputStream(bundle));
+        assertThrows(IOException.class, reader::readHeader);
+    }
+
+    @Test
+    void requiresFileToBeConsumed() throws Exception {
+        var bundle = write(
+                new JsonDiff(new JsonRepo("repo", "abc"), ""),
+                Map.of("f", new byte[]{1, 2, 3}));
+        var reader = new Bundle.Reader(new ByteArrayInputStream(bundle));
+        reader.readHeader();
+        reader.nextFile();
+        assertThrows(IllegalStateException.class, reader::nextFile);
+    }
+
+    private byte[] write(JsonDiff header, Map<String, byte[]> files) throws IOException {
+        var repo = Files.createTempDirectory(dir, "repo").toFile();
+        var list = new ArrayList<File>();
+        for (var e : files.entrySet()) {
+            var f = new File(repo, e.getKey());
+            f.getParentFile().mkdirs();
+            Files.write(f.toPath(), e.getValue());
+            list.add(f);
+        }
+        var os = new ByteArrayOutputStream();
+        Bundle.write(os, header, repo, list);
+        return os.toByteArray();
+    }
+}
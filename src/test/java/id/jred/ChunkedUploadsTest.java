@@ -0,0 +1,171 @@
+package id.jred;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class ChunkedUploadsTest {
+    @TempDir
+    Path dir;
+
+    private final List<File> published = new ArrayList<>();
+
+    @Test
+    void mergesRangesInAnyOrder() throws Exception {
+        var data = randomData(1000);
+        var sha = Hash.sha256(data);
+        var dest = dir.resolve("sub/file").toFile();
+        var uploads = new ChunkedUploads();
+
+        assertRanges(uploads.getState(dest, data.length, sha));
+        assertRanges(write(uploads, dest, data, 500, 100), 500, 600);
+        // Adjacent
+        assertRanges(write(uploads, dest, data, 600, 50), 500, 650);
+        assertRanges(write(uploads, dest, data, 100, 100), 100, 200, 500, 650);
+        // Overlaps both sides and bridges the gap
+        assertRanges(write(uploads, dest, data, 150, 400), 100, 650);
+        // Inside
+        assertRanges(write(uploads, dest, data, 200, 10), 100, 650);
+        assertRanges(write(uploads, dest, data, 900, 100), 100, 650, 900, 1000);
+        assertRanges(uploads.getState(dest, data.length, sha), 100, 650, 900, 1000);
+        assertFalse(dest.exists());
+        assertTrue(published.isEmpty());
+
+        write(uploads, dest, data, 0, 100);
+        var last = write(uploads, dest, data, 600, 300);
+        assertTrue(last.isComplete());
+        assertRanges(last, 0, 1000);
+        assertEquals(List.of(dest), published);
+        assertArrayEquals(data, Files.readAllBytes(dest.toPath()));
+        assertEquals(List.of("file"), List.of(dest.getParentFile().list()));
+        // Upload is done, next one starts over
+        assertRanges(uploads.getState(dest, data.length, sha));
+    }
+
+    @Test
+    void completesRandomChunks() throws Exception {
+        var random = new Random(20191005);
+        for (int round = 0; round < 50; round++) {
+            var data = randomData(1 + random.nextInt(5000));
+            var dest = dir.resolve("random" + round).toFile();
+            var uploads = new ChunkedUploads();
+            JsonChunks state;
+            do {
+                var offset = random.nextInt(data.length);
+                var length = random.nextInt(data.length - offset + 1);
+                state = write(uploads, dest, data, offset, length);
+            } while (!state.isComplete());
+            assertArrayEquals(data, Files.readAllBytes(dest.toPath()), "round " + round);
+        }
+    }
+
+    @Test
+    void deletesPartOnHashMismatch() throws Exception {
+        var data = randomData(100);
+        var dest = dir.resolve("file").toFile();
+        var uploads = new ChunkedUploads();
+        assertThrows(IOException.class, () -> uploads.write(
+                dest, data.length, Hash.sha256(new byte[0]), 0, data.length,
+                Channels.newChannel(new ByteArrayInputStream(data)), this::publish));
+        assertEquals(0, dir.toFile().list().length);
+        assertTrue(published.isEmpty());
+    }
+
+    @Test
+    void startsOverForAnotherVersion() throws Exception {
+        var data = randomData(100);
+        var dest = dir.resolve("file").toFile();
+        var uploads = new ChunkedUploads();
+        write(uploads, dest, data, 0, 50);
+        assertRanges(uploads.getState(dest, data.length, Hash.sha256(new byte[0])));
+        assertRanges(uploads.getState(dest, data.length + 1, Hash.sha256(data)));
+
+        var other = data.clone();
+        other[0]++;
+        assertRanges(write(uploads, dest, other, 50, 10), 50, 60);
+        assertRanges(uploads.getState(dest, data.length, Hash.sha256(data)));
+        // Part of the previous version is gone
+        assertEquals(1, dir.toFile().list().length);
+    }
+
+    // Uploads of the whole file, as by PUT /files, go through .<name>.jred-part
+    @Test
+    void keepsPartApartFromOtherWrites() throws Exception {
+        var data = randomData(100);
+        var dest = dir.resolve("file").toFile();
+        var uploads = new ChunkedUploads();
+        write(uploads, dest, data, 0, 50);
+        var other = dir.resolve(".file.jred-part");
+        Files.write(other, new byte[10]);
+        Files.move(other, dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        assertTrue(write(uploads, dest, data, 50, 50).isComplete());
+        assertArrayEquals(data, Files.readAllBytes(dest.toPath()));
+        assertEquals(List.of("file"), List.of(dir.toFile().list()));
+    }
+
+    @Test
+    void rejectsInvalidChunks() throws Exception {
+        var data = randomData(100);
+        var dest = dir.resolve("file").toFile();
+        var uploads = new ChunkedUploads();
+        for (var range : new long[][] {{-1, 10}, {0, -1}, {50, 51}, {101, 0}}) {
+            assertThrows(IllegalArgumentException.class, () -> uploads.write(
+                    dest, data.length, Hash.sha256(data), range[0], range[1],
+                    Channels.newChannel(new ByteArrayInputStream(data)), this::publish),
+                    Arrays.toString(range));
+        }
+        assertThrows(IOException.class, () -> uploads.write(
+                dest, data.length, Hash.sha256(data), 0, 100,
+                Channels.newChannel(new ByteArrayInputStream(data, 0, 60)), this::publish));
+        assertRanges(uploads.getState(dest, data.length, Hash.sha256(data)));
+    }
+
+    private JsonChunks write(
+            ChunkedUploads uploads,
+            File dest,
+            byte[] data,
+            int offset,
+            int length) throws Exception {
+        var body = Channels.newChannel(new ByteArrayInputStream(data, offset, length));
+        return uploads.write(
+                dest, data.length, Hash.sha256(data), offset, length, body, this::publish);
+    }
+
+    private void publish(File part, File dest) throws IOException {
+        Files.move(part.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        published.add(dest);
+    }
+
+    private static void assertRanges(JsonChunks state, long... expected) {
+        var actual = new ArrayList<Long>();
+        for (var r : state.getRanges()) {
+            actual.add(r[0]);
+            actual.add(r[1]);
+        }
+        assertEquals(Arrays.toString(expected), actual.toString());
+    }
+
+    private static byte[] randomData(int size) {
+        var data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
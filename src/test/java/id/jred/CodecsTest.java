@@ -0,0 +1,76 @@
+package id.jred;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class CodecsTest {
+    @Test
+    void findsCodecByName() {
+        var gzip = Codecs.get(GzipCodec.NAME);
+        assertEquals(GzipCodec.NAME, gzip.getName());
+        assertSame(gzip, Codecs.get(" GZip "));
+        assertNull(Codecs.get("br"));
+        assertNull(Codecs.get(""));
+        assertNull(Codecs.get(Codecs.NONE));
+        assertTrue(Codecs.allNamesAsString().startsWith(GzipCodec.NAME));
+    }
+
+    @Test
+    void negotiatesFirstAcceptedCodec() {
+        var gzip = Codecs.get(GzipCodec.NAME);
+        for (var header : new String[] {
+            "gzip",
+            "GZIP",
+            "br, gzip",
+            " br ;q=0.9 , gzip ; q=0.5",
+            "gzip;q=0.001",
+            "gzip;level=1;q=1",
+            "gzip;q=invalid",
+        }) {
+            assertSame(gzip, Codecs.negotiate(header), header);
+        }
+        for (var header : new String[] {
+            null,
+            "",
+            "identity",
+            "br, deflate",
+            "gzip;q=0",
+            "gzip; q=0.000",
+            "gzip;Q=0",
+            "gzip;q =\t0",
+            "identity, gzip;q=0",
+        }) {
+            assertNull(Codecs.negotiate(header), header);
+        }
+    }
+
+    @Test
+    void roundTripsGzip() throws Exception {
+        var codec = Codecs.get(GzipCodec.NAME);
+        var random = new Random(20191004);
+        for (var size : new int[] {0, 1, Codecs.MIN_SIZE, 64 * 1024 + 1, 1 << 20}) {
+            var data = new byte[size];
+            // Half random, half repeated, so both paths of deflate run
+            random.nextBytes(data);
+            for (int i = size / 2; i < size; i++) {
+                data[i] = (byte) (i % 7);
+            }
+            var encoded = new ByteArrayOutputStream();
+            try (var os = codec.encode(encoded)) {
+                os.write(data);
+            }
+            try (var is = codec.decode(new ByteArrayInputStream(encoded.toByteArray()))) {
+                assertArrayEquals(data, is.readAllBytes(), "size " + size);
+            }
+        }
+    }
+}
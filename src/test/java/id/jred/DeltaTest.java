@@ -0,0 +1,131 @@
+package id.jred;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class DeltaTest {
+    // Delta goes over the wire as JSON, so it is checked after a round trip.
+    @Test
+    void rebuildsTargetFromGeneratedDiffs() throws Exception {
+        var random = new Random(20191002);
+        for (int round = 0; round < 500; round++) {
+            var base = randomDiff(random, null);
+            var target = random.nextInt(10) == 0 ? base : randomDiff(random, base);
+            var delta = Json.mapper.readValue(
+                    Json.mapper.writeValueAsBytes(Delta.compute(base, target)),
+                    new TypeReference<List<JsonDeltaOp>>() {});
+            assertEquals(target, Delta.apply(base, delta), "round " + round);
+        }
+    }
+
+    @Test
+    void sendsOnlyChangedLines() {
+        var base = "diff --git a/f b/f\n@@ -1,3 +1,3 @@\n a\n-b\n+c\n d\n" +
+                "diff --git a/g b/g\n@@ -1 +1 @@\n-x\n+y\n";
+        var target = "diff --git a/f b/f\n@@ -1,3 +1,3 @@\n a\n-b\n+C\n d\n" +
+                "diff --git a/g b/g\n@@ -1 +1 @@\n-x\n+y\n";
+        var delta = Delta.compute(base, target);
+        assertEquals(3, delta.size());
+        assertNull(delta.get(0).getText());
+        assertEquals("+C\n", delta.get(1).getText());
+        assertNull(delta.get(2).getText());
+        assertTrue(Delta.getSize(delta) < target.length());
+        assertEquals(target, Delta.apply(base, delta));
+    }
+
+    @Test
+    void copiesWholeUnchangedDiff() {
+        var diff = "diff --git a/f b/f\n@@ -1 +1 @@\n-a\n+b\n";
+        var delta = Delta.compute(diff, diff);
+        assertEquals(1, delta.size());
+        assertEquals(0, delta.get(0).getStart());
+        assertEquals(4, delta.get(0).getCount());
+    }
+
+    @Test
+    void handlesEmptyAndUnterminatedDiffs() {
+        for (var pair : new String[][] {
+            {"", ""},
+            {"", "diff --git a/f b/f\n+x"},
+            {"diff --git a/f b/f\n+x", ""},
+            {"diff --git a/f b/f\n+x", "diff --git a/f b/f\n+x\n"},
+            {"preamble\ndiff --git a/f b/f\n+x\n", "diff --git a/f b/f\n+x\n"},
+        }) {
+            assertEquals(pair[1], Delta.apply(pair[0], Delta.compute(pair[0], pair[1])));
+        }
+    }
+
+    @Test
+    void rejectsOpsOutOfRange() {
+        var base = "a\nb\n";
+        for (var op : new JsonDeltaOp[] {
+            new JsonDeltaOp(1, 2), new JsonDeltaOp(-1, 1), new JsonDeltaOp(0, -1)
+        }) {
+            assertThrows(IllegalArgumentException.class, () -> Delta.apply(base, List.of(op)));
+        }
+    }
+
+    // Small delta which copies the base over and over is cut at the limit.
+    @Test
+    void stopsAtMaxLength() {
+        var base = "diff --git a/f b/f\n+x\n";
+        var ops = new ArrayList<JsonDeltaOp>();
+        for (int i = 0; i < 1000; i++) {
+            ops.add(new JsonDeltaOp(0, 2));
+        }
+        assertEquals(base.repeat(1000), Delta.apply(base, ops, base.length() * 1000));
+        assertNull(Delta.apply(base, ops, base.length() * 1000 - 1));
+        assertNull(Delta.apply(base, List.of(new JsonDeltaOp("toolong")), 6));
+    }
+
+    // Sections of base are kept, changed, dropped or moved, and new ones
+    // are added. Section headers can repeat.
+    private static String randomDiff(Random random, String base) {
+        var sections = new ArrayList<String>();
+        if (base != null) {
+            for (var s : base.split("(?=diff --git )")) {
+                if (random.nextInt(5) == 0) {
+                    continue;
+                }
+                sections.add(random.nextInt(3) == 0 ? changeLines(random, s) : s);
+            }
+            if (!sections.isEmpty() && random.nextInt(4) == 0) {
+                sections.add(sections.remove(random.nextInt(sections.size())));
+            }
+        }
+        for (int i = 0, n = base == null ? 1 + random.nextInt(6) : random.nextInt(3); i < n; i++) {
+            var sb = new StringBuilder("diff --git a/f" + random.nextInt(8) + " b/f\n");
+            for (int j = 0, m = random.nextInt(12); j < m; j++) {
+                sb.append("-+ ".charAt(random.nextInt(3))).append(random.nextInt(5)).append('\n');
+            }
+            sections.add(random.nextInt(sections.size() + 1), sb.toString());
+        }
+        var diff = String.join("", sections);
+        // Last line end can be missing
+        return random.nextInt(8) == 0 && diff.endsWith("\n")
+                ? diff.substring(0, diff.length() - 1)
+                : diff;
+    }
+
+    private static String changeLines(Random random, String section) {
+        var lines = new ArrayList<>(List.of(section.split("(?<=\n)")));
+        for (int i = 0, n = 1 + random.nextInt(3); i < n && lines.size() > 1; i++) {
+            var at = 1 + random.nextInt(lines.size() - 1);
+            if (random.nextBoolean()) {
+                lines.set(at, "+" + random.nextInt(100) + "\n");
+            } else {
+                lines.add(at, " new\n");
+            }
+        }
+        return String.join("", lines);
+    }
+}
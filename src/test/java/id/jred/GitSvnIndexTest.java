@@ -0,0 +1,134 @@
+package id.jred;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+final class GitSvnIndexTest {
+    private static final String SVN_ID = "git-svn-id: https://svn.example.com/repo/trunk@{0} " +
+            "0c4e7ea4-2f3b-0410-9a4a-b0c1a7a2f0c1";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void parsesLog() {
+        var log = "aaa\nfirst\n\ngit-svn-id: https://svn/trunk@12 uuid\n\0" +
+                "bbb\nno id here, git-svn-id: https://svn/trunk@13 uuid\n\0" +
+                "ccc\n\0" +
+                "ddd\nsubject\n\ngit-svn-id: https://svn/branch@7 uuid";
+        var commits = GitSvnIndex.parseLog(log);
+        assertEquals(4, commits.size());
+        assertArrayEquals(new String[] {"aaa", "12"}, commits.get(0));
+        assertArrayEquals(new String[] {"bbb", null}, commits.get(1));
+        assertArrayEquals(new String[] {"ccc", null}, commits.get(2));
+        assertArrayEquals(new String[] {"ddd", "7"}, commits.get(3));
+        assertEquals(0, GitSvnIndex.parseLog("").size());
+    }
+
+    // Merged branch has its own git-svn-id, first-parent walk skips it.
+    @Test
+    void resolvesOnFirstParent() throws Exception {
+        var repo = repo();
+        var base = commit(repo, "base\n\n" + svnId(10));
+        var second = commit(repo, "second\n\n" + svnId(11));
+        git(repo, "checkout", "-q", "-b", "branch", base);
+        commit(repo, "on branch\n\n" + svnId(20));
+        git(repo, "checkout", "-q", "master");
+        git(repo, "-c", "user.name=t", "-c", "user.email=t@t",
+            "merge", "-q", "--no-ff", "-m", "merge", "branch");
+        var head = commit(repo, "local");
+        var index = new GitSvnIndex(repo, 1, indexFile());
+        assertArrayEquals(new String[] {"11", second}, index.resolve(head));
+        assertArrayEquals(new String[] {"11", second}, index.resolve(second));
+    }
+
+    // History is walked in batches which double, walked commits are kept
+    // and read back without git.
+    @Test
+    void keepsWalkedCommits() throws Exception {
+        var repo = repo();
+        var svn = commit(repo, "svn\n\n" + svnId(5));
+        var commits = new ArrayList<String>();
+        for (int i = 0; i < 6; i++) {
+            commits.add(commit(repo, "local " + i));
+        }
+        var expected = new String[] {"5", svn};
+        var index = new GitSvnIndex(repo, 1, indexFile());
+        assertArrayEquals(expected, index.resolve(commits.get(2)));
+        assertArrayEquals(expected, index.resolve(commits.get(5)));
+        var lines = Files.readAllLines(indexFile().toPath(), StandardCharsets.UTF_8);
+        assertEquals(7, lines.size());
+        assertEquals(commits.get(2) + " 5 " + svn, lines.get(0));
+
+        // Writer killed in the middle of a line
+        Files.writeString(indexFile().toPath(), "cut 5", StandardOpenOption.APPEND);
+        var missing = new File(dir.toFile(), "missing");
+        var reread = new GitSvnIndex(missing, 1, indexFile());
+        for (var c : commits) {
+            assertArrayEquals(expected, reread.resolve(c));
+        }
+        assertArrayEquals(expected, reread.resolve(svn));
+        assertThrows(IOException.class, () -> reread.resolve("cut"));
+    }
+
+    @Test
+    void failsWithoutSvnId() throws Exception {
+        var repo = repo();
+        commit(repo, "first");
+        var head = commit(repo, "second");
+        var index = new GitSvnIndex(repo, 1, indexFile());
+        assertThrows(IOException.class, () -> index.resolve(head));
+        assertNull(readIndex());
+    }
+
+    private File repo() throws Exception {
+        var repo = dir.resolve("repo").toFile().getCanonicalFile();
+        repo.mkdir();
+        git(repo, "init", "-q");
+        git(repo, "symbolic-ref", "HEAD", "refs/heads/master");
+        return repo;
+    }
+
+    private File indexFile() {
+        return dir.resolve("index/repo").toFile();
+    }
+
+    private List<String> readIndex() throws IOException {
+        var file = indexFile();
+        return file.exists() ? Files.readAllLines(file.toPath(), StandardCharsets.UTF_8) : null;
+    }
+
+    private static String svnId(int revision) {
+        return SVN_ID.replace("{0}", Integer.toString(revision));
+    }
+
+    private static String commit(File repo, String message) throws Exception {
+        git(repo, "-c", "user.name=t", "-c", "user.email=t@t",
+            "commit", "-q", "--allow-empty", "-m", message);
+        return git(repo, "rev-parse", "HEAD");
+    }
+
+    private static String git(File repo, String... args) throws Exception {
+        var command = new ArrayList<String>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        return new String(
+                Script.runBytes(command, repo, null /* stdin */),
+                StandardCharsets.UTF_8).trim();
+    }
+}
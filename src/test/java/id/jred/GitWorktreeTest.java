@@ -0,0 +1,244 @@
+package id.jred;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class GitWorktreeTest {
+    private static final FileTime OLD = FileTime.fromMillis(1_000_000_000_000L);
+
+    @TempDir
+    Path dir;
+
+    // Each diff after the first is applied with targeted reset, worktree
+    // must be what full reset and apply make of it.
+    @Test
+    void matchesFullResetOverDiffs() throws Exception {
+        var repo = repo();
+        var diffs = List.of(
+                diff(repo, () -> {
+                    write(repo, "a", "1\ntwo\n3\n");
+                    write(repo, "new", "n\n");
+                    Files.delete(new File(repo, "b").toPath());
+                    Files.delete(new File(repo, "run.sh").toPath());
+                }),
+                diff(repo, () -> {
+                    write(repo, "a", "1\ntwo\n3\n");
+                    write(repo, "dir/c", "c\nmore\n");
+                    write(repo, "dir/new", "");
+                }),
+                diff(repo, () -> {
+                    write(repo, "b", "b changed\n");
+                    Files.delete(new File(repo, "dir/c").toPath());
+                }),
+                diff(repo, () -> {}));
+        reset(repo);
+        var patch = Patch.parse(diffs.get(0));
+        patch.apply(repo);
+        var state = GitWorktree.State.afterReset(revision(repo), patch);
+        for (int i = 1; i < diffs.size(); i++) {
+            var expected = expected(repo, diffs.get(i));
+            patch = Patch.parse(diffs.get(i));
+            state = GitWorktree.update(repo, state, patch);
+            assertNotNull(state);
+            assertEquals(expected, snapshot(repo), "diff " + i);
+        }
+        assertTrue(new File(repo, "run.sh").canExecute());
+    }
+
+    // Files with the content they would get are not written.
+    @Test
+    void keepsUnchangedFiles() throws Exception {
+        var repo = repo();
+        var first = diff(repo, () -> {
+            write(repo, "a", "1\ntwo\n3\n");
+            write(repo, "b", "b changed\n");
+        });
+        var second = diff(repo, () -> write(repo, "a", "1\ntwo\n3\n"));
+        reset(repo);
+        var patch = Patch.parse(first);
+        patch.apply(repo);
+        var state = GitWorktree.State.afterReset(revision(repo), patch);
+        for (var path : new String[] {"a", "b", "dir/c"}) {
+            Files.setLastModifiedTime(new File(repo, path).toPath(), OLD);
+        }
+
+        GitWorktree.update(repo, state, Patch.parse(second));
+        assertEquals(OLD, Files.getLastModifiedTime(new File(repo, "a").toPath()));
+        assertEquals("b\n", read(repo, "b"));
+        assertFalse(OLD.equals(Files.getLastModifiedTime(new File(repo, "b").toPath())));
+        assertEquals(OLD, Files.getLastModifiedTime(new File(repo, "dir/c").toPath()));
+    }
+
+    // Copied tracked file is restored, copied untracked one is left as is.
+    @Test
+    void restoresCopiedTrackedFiles() throws Exception {
+        var repo = repo();
+        var diff = diff(repo, () -> write(repo, "dir/c", "c2\n"));
+        var patch = Patch.parse(diff);
+        var state = GitWorktree.State.afterReset(revision(repo), patch);
+        write(repo, "a", "copied\n");
+        state.touch("a");
+        write(repo, "untracked", "copied\n");
+        state.touch("untracked");
+
+        GitWorktree.update(repo, state, patch);
+        assertEquals("1\n2\n3\n", read(repo, "a"));
+        assertEquals("copied\n", read(repo, "untracked"));
+        assertEquals("c2\n", read(repo, "dir/c"));
+    }
+
+    @Test
+    void givesUpOnSymlink() throws Exception {
+        var repo = repo();
+        var patch = Patch.parse(diff(repo, () -> write(repo, "a", "x\n")));
+        var state = GitWorktree.State.afterReset(revision(repo), patch);
+        state.touch("link");
+        write(repo, "b", "dirty\n");
+        state.touch("b");
+        assertNull(GitWorktree.update(repo, state, patch));
+        assertEquals("dirty\n", read(repo, "b"));
+    }
+
+    @Test
+    void writesNothingOnMismatch() throws Exception {
+        var repo = repo();
+        var state = GitWorktree.State.afterReset(
+                revision(repo),
+                Patch.parse(diff(repo, () -> write(repo, "b", "b2\n"))));
+        write(repo, "b", "b2\n");
+        var patch = Patch.parse("diff --git a/a b/a\n" +
+                "--- a/a\n" +
+                "+++ b/a\n" +
+                "@@ -1 +1 @@\n" +
+                "-not there\n" +
+                "+x\n");
+        assertThrows(Patch.MismatchException.class, () -> GitWorktree.update(repo, state, patch));
+        assertEquals("b2\n", read(repo, "b"));
+    }
+
+    // Handlers falls back to full reset on it.
+    @Test
+    void failsOnMissingObject() throws Exception {
+        var repo = repo();
+        var patch = Patch.parse(diff(repo, () -> write(repo, "a", "x\n")));
+        var state = GitWorktree.State.afterReset(revision(repo), patch);
+        var blob = git(repo, "rev-parse", "HEAD:b").trim();
+        Files.delete(new File(repo, ".git/objects/" + blob.substring(0, 2) + "/" +
+                blob.substring(2)).toPath());
+        state.touch("b");
+        var ex = assertThrows(IOException.class, () -> GitWorktree.update(repo, state, patch));
+        assertFalse(ex instanceof Patch.MismatchException);
+        assertFalse(ex instanceof Patch.UnsupportedException);
+    }
+
+    private interface Edit {
+        void run() throws Exception;
+    }
+
+    // Git diff of the edits against HEAD. Worktree is reset before them.
+    private static String diff(File repo, Edit edit) throws Exception {
+        reset(repo);
+        edit.run();
+        git(repo, "add", "-A");
+        var diff = git(repo, "diff", "--no-renames", "HEAD");
+        reset(repo);
+        return diff;
+    }
+
+    // Worktree after full reset and apply. Worktree is left as it was.
+    private Map<String, String> expected(File repo, String diff) throws Exception {
+        var copy = dir.resolve("expected").toFile();
+        git(repo, "worktree", "add", "-q", "--detach", copy.getPath(), "HEAD");
+        try {
+            Patch.parse(diff).apply(copy.getCanonicalFile());
+            return snapshot(copy);
+        } finally {
+            git(repo, "worktree", "remove", "--force", copy.getPath());
+        }
+    }
+
+    private File repo() throws Exception {
+        var repo = dir.resolve("repo").toFile().getCanonicalFile();
+        repo.mkdir();
+        git(repo, "init", "-q");
+        write(repo, "a", "1\n2\n3\n");
+        write(repo, "b", "b\n");
+        write(repo, "dir/c", "c\n");
+        write(repo, "run.sh", "#!/bin/sh\n");
+        new File(repo, "run.sh").setExecutable(true, false);
+        Files.createSymbolicLink(new File(repo, "link").toPath(), Path.of("a"));
+        git(repo, "add", "-A");
+        git(repo, "-c", "user.name=t", "-c", "user.email=t@t", "commit", "-q", "-m", "base");
+        return repo;
+    }
+
+    private static String revision(File repo) throws Exception {
+        return git(repo, "rev-parse", "HEAD").trim();
+    }
+
+    // Paths of files under repo, without .git, with content and, for
+    // executables, a mark. Symlinks map to their target.
+    private static Map<String, String> snapshot(File repo) throws IOException {
+        var result = new TreeMap<String, String>();
+        var root = repo.toPath();
+        try (var paths = Files.walk(root)) {
+            for (var p : paths.collect(Collectors.toList())) {
+                var relative = root.relativize(p).toString();
+                if (relative.equals(".git") || relative.startsWith(".git/")) {
+                    continue;
+                }
+                if (Files.isSymbolicLink(p)) {
+                    result.put(relative, "-> " + Files.readSymbolicLink(p));
+                } else if (Files.isRegularFile(p)) {
+                    var content = new String(Files.readAllBytes(p), StandardCharsets.UTF_8);
+                    result.put(relative, Files.isExecutable(p) ? "x " + content : content);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void reset(File repo) throws Exception {
+        git(repo, "reset", "-q", "--hard", "HEAD");
+        git(repo, "clean", "-q", "-f", "-d");
+    }
+
+    private static String git(File repo, String... args) throws Exception {
+        var command = new ArrayList<String>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        return new String(
+                Script.runBytes(command, repo, null /* stdin */),
+                StandardCharsets.UTF_8);
+    }
+
+    private static void write(File repo, String path, String content) throws IOException {
+        var file = new File(repo, path);
+        file.getParentFile().mkdirs();
+        Files.writeString(file.toPath(), content, StandardCharsets.UTF_8);
+    }
+
+    private static String read(File repo, String path) throws IOException {
+        return Files.readString(new File(repo, path).toPath(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,383 @@
+package id.jred;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class PatchTest {
+    // Few distinct lines, so hunks have repeated context to mismatch on.
+    private static final String[] WORDS = {
+        "alpha", "beta", "gamma", "", "  indented", "tab\there", "caf\u00e9", "crlf\r", "}", "{"
+    };
+
+    @TempDir
+    Path dir;
+
+    // Worktree after Patch.apply must be what git diff was taken of, and
+    // what git apply makes of the same diff.
+    @Test
+    void matchesGitApplyOnGeneratedDiffs() throws Exception {
+        var random = new Random(20191001);
+        for (int round = 0; round < 40; round++) {
+            var repo = dir.resolve("repo" + round).toFile();
+            repo.mkdir();
+            git(repo, "init", "-q");
+            for (int i = 0, n = 1 + random.nextInt(12); i < n; i++) {
+                write(repo, randomPath(random, i), randomContent(random));
+            }
+            git(repo, "add", "-A");
+            git(repo, "-c", "user.name=t", "-c", "user.email=t@t", "commit", "-q", "-m", "base");
+
+            mutate(repo, random);
+            git(repo, "add", "-A");
+            // Renames go to the script, not to Patch.
+            var diff = new String(
+                    Script.runBytes(List.of("git", "diff", "--no-renames", "HEAD"), repo, null),
+                    StandardCharsets.UTF_8);
+            var expected = snapshot(repo);
+
+            reset(repo);
+            Patch.parse(diff).apply(repo.getCanonicalFile());
+            assertEquals(expected, snapshot(repo), "Patch.apply, round " + round);
+
+            reset(repo);
+            var diffFile = dir.resolve("round" + round + ".diff");
+            Files.writeString(diffFile, diff, StandardCharsets.UTF_8);
+            git(repo, "apply", diffFile.toString());
+            assertEquals(expected, snapshot(repo), "git apply, round " + round);
+        }
+    }
+
+    @Test
+    void addsNewlineAtEndOfFile() throws Exception {
+        var repo = repo("f", "a\nb");
+        apply(repo, "diff --git a/f b/f\n" +
+                "index 1111111..2222222 100644\n" +
+                "--- a/f\n" +
+                "+++ b/f\n" +
+                "@@ -1,2 +1,2 @@\n" +
+                " a\n" +
+                "-b\n" +
+                "\\ No newline at end of file\n" +
+                "+b\n");
+        assertEquals("a\nb\n", read(repo, "f"));
+    }
+
+    @Test
+    void removesNewlineAtEndOfFile() throws Exception {
+        var repo = repo("f", "a\nb\n");
+        apply(repo, "diff --git a/f b/f\n" +
+                "--- a/f\n" +
+                "+++ b/f\n" +
+                "@@ -1,2 +1,2 @@\n" +
+                " a\n" +
+                "-b\n" +
+                "+c\n" +
+                "\\ No newline at end of file\n");
+        assertEquals("a\nc", read(repo, "f"));
+    }
+
+    @Test
+    void insertsIntoEmptyFile() throws Exception {
+        var repo = repo("f", "");
+        apply(repo, "diff --git a/f b/f\n" +
+                "--- a/f\n" +
+                "+++ b/f\n" +
+                "@@ -0,0 +1,2 @@\n" +
+                "+x\n" +
+                "+y\n");
+        assertEquals("x\ny\n", read(repo, "f"));
+    }
+
+    @Test
+    void createsAndDeletesEmptyFiles() throws Exception {
+        var repo = repo("sub/old", "");
+        apply(repo, "diff --git a/sub/old b/sub/old\n" +
+                "deleted file mode 100644\n" +
+                "index e69de29..0000000\n" +
+                "diff --git a/new b/new\n" +
+                "new file mode 100644\n" +
+                "index 0000000..e69de29\n");
+        assertEquals("", read(repo, "new"));
+        assertFalse(new File(repo, "sub/old").exists());
+        // Like git apply, emptied directory is removed
+        assertFalse(new File(repo, "sub").exists());
+    }
+
+    @Test
+    void appliesSvnDiff() throws Exception {
+        var repo = repo("gone", "x\n");
+        var patch = Patch.parse("Index: added\n" +
+                "===================================================================\n" +
+                "--- added\t(nonexistent)\n" +
+                "+++ added\t(working copy)\n" +
+                "@@ -0,0 +1,2 @@\n" +
+                "+one\n" +
+                "+two\n" +
+                "Index: old\n" +
+                "===================================================================\n" +
+                "--- old\t(revision 0)\n" +
+                "+++ old\t(working copy)\n" +
+                "@@ -0,0 +1 @@\n" +
+                "+three\n" +
+                "Index: gone\n" +
+                "===================================================================\n" +
+                "--- gone\t(revision 12)\n" +
+                "+++ gone\t(nonexistent)\n" +
+                "@@ -1 +0,0 @@\n" +
+                "-x\n");
+        assertTrue(patch.getFiles().get(0).isCreated());
+        assertTrue(patch.getFiles().get(1).isCreated());
+        assertTrue(patch.getFiles().get(2).isDeleted());
+        patch.apply(repo);
+        assertEquals("one\ntwo\n", read(repo, "added"));
+        assertEquals("three\n", read(repo, "old"));
+        assertFalse(new File(repo, "gone").exists());
+    }
+
+    @Test
+    void rejectsWhatItDoesNotHandle() {
+        // Quoted paths, mode changes, renames, binaries go to the script.
+        for (var diff : new String[] {
+            "diff --git \"a/caf\\303\\251\" \"b/caf\\303\\251\"\n" +
+                    "--- \"a/caf\\303\\251\"\n" +
+                    "+++ \"b/caf\\303\\251\"\n" +
+                    "@@ -1 +1 @@\n" +
+                    "-a\n" +
+                    "+b\n",
+            "diff --git a/f b/f\nold mode 100644\nnew mode 100755\n",
+            "diff --git a/f b/g\nsimilarity index 100%\nrename from f\nrename to g\n",
+            "diff --git a/f b/f\nindex 1111111..2222222 100644\nBinary files a/f and b/f differ\n",
+            "diff --git a/f b/f\nnew file mode 100755\n",
+            "diff --git a/f b/f\n--- a/f\n+++ b/f\n@@ -1,2 +1,2 @@\n a\n",
+        }) {
+            assertThrows(Patch.UnsupportedException.class, () -> Patch.parse(diff), diff);
+        }
+    }
+
+    @Test
+    void rejectsPathOutsideRepo() throws Exception {
+        var repo = repo("f", "a\n");
+        var patch = Patch.parse("diff --git a/../f b/../f\n" +
+                "--- a/../f\n" +
+                "+++ b/../f\n" +
+                "@@ -1 +1 @@\n" +
+                "-a\n" +
+                "+b\n");
+        assertThrows(Patch.UnsupportedException.class, () -> patch.apply(repo));
+    }
+
+    // All files are checked before any is written.
+    @Test
+    void writesNothingOnMismatch() throws Exception {
+        var repo = repo("a", "1\n2\n3\n");
+        write(repo, "b", "x\ny\n");
+        var patch = Patch.parse("diff --git a/a b/a\n" +
+                "--- a/a\n" +
+                "+++ b/a\n" +
+                "@@ -2 +2 @@\n" +
+                "-2\n" +
+                "+two\n" +
+                "diff --git a/b b/b\n" +
+                "--- a/b\n" +
+                "+++ b/b\n" +
+                "@@ -1,2 +1,2 @@\n" +
+                " x\n" +
+                "-z\n" +
+                "+zz\n");
+        assertThrows(Patch.MismatchException.class, () -> patch.apply(repo));
+        assertEquals("1\n2\n3\n", read(repo, "a"));
+        assertEquals("x\ny\n", read(repo, "b"));
+    }
+
+    @Test
+    void rejectsCreatedFileWhichExists() throws Exception {
+        var repo = repo("f", "a\n");
+        var patch = Patch.parse("diff --git a/f b/f\n" +
+                "new file mode 100644\n" +
+                "--- /dev/null\n" +
+                "+++ b/f\n" +
+                "@@ -0,0 +1 @@\n" +
+                "+b\n");
+        assertThrows(Patch.MismatchException.class, () -> patch.apply(repo));
+        assertEquals("a\n", read(repo, "f"));
+    }
+
+    @Test
+    void patchesManyFilesInParallel() throws Exception {
+        var repo = repo("f0", "0\n");
+        var sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            if (i > 0) {
+                write(repo, "f" + i, i + "\n");
+            }
+            sb.append("diff --git a/f").append(i).append(" b/f").append(i).append('\n')
+                    .append("--- a/f").append(i).append('\n')
+                    .append("+++ b/f").append(i).append('\n')
+                    .append("@@ -1 +1 @@\n")
+                    .append('-').append(i).append('\n')
+                    .append('+').append(i * 2).append('\n');
+        }
+        Patch.parse(sb.toString()).apply(repo);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i * 2 + "\n", read(repo, "f" + i));
+        }
+    }
+
+    private static void mutate(File repo, Random random) throws IOException {
+        var files = snapshot(repo).entrySet().stream()
+                .filter(e -> e.getValue() != null)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        for (var path : files) {
+            var choice = random.nextInt(10);
+            if (choice < 4) {
+                continue;
+            }
+            if (choice == 4) {
+                Files.delete(new File(repo, path).toPath());
+                continue;
+            }
+            var text = read(repo, path);
+            var lines = new ArrayList<String>();
+            if (!text.isEmpty()) {
+                lines.addAll(Arrays.asList(text.split("\n", -1)));
+                if (text.endsWith("\n")) {
+                    lines.remove(lines.size() - 1);
+                }
+            }
+            for (int i = 0, n = 1 + random.nextInt(4); i < n; i++) {
+                var at = random.nextInt(lines.size() + 1);
+                switch (random.nextInt(3)) {
+                case 0:
+                    lines.add(at, randomWord(random));
+                    break;
+                case 1:
+                    if (at < lines.size()) {
+                        lines.remove(at);
+                    }
+                    break;
+                default:
+                    if (at < lines.size()) {
+                        lines.set(at, randomWord(random));
+                    }
+                }
+            }
+            // Line end at end of file is toggled at times
+            var newlineAtEnd = text.endsWith("\n") != (random.nextInt(4) == 0);
+            var content = String.join("\n", lines);
+            write(repo, path, lines.isEmpty() || !newlineAtEnd ? content : content + "\n");
+        }
+        for (int i = 0, n = random.nextInt(3); i < n; i++) {
+            write(repo, randomPath(random, 100 + i), randomContent(random));
+        }
+        // As git apply does, and git does not keep empty directories.
+        var dirs = snapshot(repo).entrySet().stream()
+                .filter(e -> e.getValue() == null)
+                .map(Map.Entry::getKey)
+                .sorted((a, b) -> b.compareTo(a))
+                .collect(Collectors.toList());
+        for (var d : dirs) {
+            var entries = new File(repo, d).list();
+            if (entries != null && entries.length == 0) {
+                Files.delete(new File(repo, d).toPath());
+            }
+        }
+    }
+
+    private static String randomPath(Random random, int index) {
+        switch (random.nextInt(3)) {
+        case 0:
+            return "f" + index + ".txt";
+        case 1:
+            return "dir" + random.nextInt(3) + "/f" + index;
+        default:
+            return "dir" + random.nextInt(3) + "/sub dir/f " + index;
+        }
+    }
+
+    private static String randomContent(Random random) {
+        var n = random.nextInt(8) == 0 ? 0 : random.nextInt(40);
+        var sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append(randomWord(random)).append('\n');
+        }
+        if (n > 0 && random.nextInt(4) == 0) {
+            sb.append(randomWord(random));
+        }
+        return sb.toString();
+    }
+
+    private static String randomWord(Random random) {
+        return WORDS[random.nextInt(WORDS.length)];
+    }
+
+    // Paths of files and directories under repo, without .git. Directory
+    // maps to null.
+    private static Map<String, String> snapshot(File repo) throws IOException {
+        var result = new TreeMap<String, String>();
+        var root = repo.toPath();
+        try (var paths = Files.walk(root)) {
+            for (var p : paths.collect(Collectors.toList())) {
+                var relative = root.relativize(p).toString();
+                if (relative.isEmpty() || relative.equals(".git") || relative.startsWith(".git/")) {
+                    continue;
+                }
+                result.put(relative, Files.isDirectory(p)
+                        ? null
+                        : new String(Files.readAllBytes(p), StandardCharsets.UTF_8));
+            }
+        }
+        return result;
+    }
+
+    private static void reset(File repo) throws Exception {
+        git(repo, "reset", "-q", "--hard", "HEAD");
+        git(repo, "clean", "-q", "-f", "-d");
+    }
+
+    private static void git(File repo, String... args) throws Exception {
+        var command = new ArrayList<String>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        Script.runBytes(command, repo, null /* stdin */);
+    }
+
+    private File repo(String path, String content) throws IOException {
+        var repo = dir.resolve("repo").toFile().getCanonicalFile();
+        repo.mkdir();
+        write(repo, path, content);
+        return repo;
+    }
+
+    private static void apply(File repo, String diff) throws IOException {
+        Patch.parse(diff).apply(repo);
+    }
+
+    private static void write(File repo, String path, String content) throws IOException {
+        var file = new File(repo, path);
+        file.getParentFile().mkdirs();
+        Files.writeString(file.toPath(), content, StandardCharsets.UTF_8);
+    }
+
+    private static String read(File repo, String path) throws IOException {
+        return Files.readString(new File(repo, path).toPath(), StandardCharsets.UTF_8);
+    }
+}
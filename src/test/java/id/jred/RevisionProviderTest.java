@@ -0,0 +1,109 @@
+package id.jred;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+// Revision must be what git rev-parse HEAD says, with refs in any of the
+// places git keeps them.
+final class RevisionProviderTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsLooseRef() throws Exception {
+        var repo = repo();
+        assertHead(new RevisionProvider(), repo);
+    }
+
+    @Test
+    void readsPackedRef() throws Exception {
+        var repo = repo();
+        git(repo, "-c", "user.name=t", "-c", "user.email=t@t", "tag", "-a", "-m", "tag", "v1");
+        git(repo, "pack-refs", "--all");
+        assertFalse(new File(repo, ".git/refs/heads/master").exists());
+        var provider = new RevisionProvider();
+        assertHead(provider, repo);
+
+        // Loose ref written by commit takes precedence over packed one
+        commit(repo, "second");
+        assertHead(provider, repo);
+    }
+
+    @Test
+    void readsDetachedHead() throws Exception {
+        var repo = repo();
+        var first = git(repo, "rev-parse", "HEAD");
+        commit(repo, "second");
+        git(repo, "checkout", "-q", "--detach", first);
+        assertEquals(first, new RevisionProvider().getRevision(VCS.GIT, repo));
+    }
+
+    @Test
+    void readsLinkedWorktree() throws Exception {
+        var repo = repo();
+        var worktree = dir.resolve("worktree").toFile();
+        git(repo, "worktree", "add", "-q", "-b", "other", worktree.getPath());
+        commit(worktree, "in worktree");
+        git(repo, "pack-refs", "--all");
+        var provider = new RevisionProvider();
+        assertHead(provider, worktree);
+        assertHead(provider, repo);
+        assertNotEquals(
+                provider.getRevision(VCS.GIT, repo),
+                provider.getRevision(VCS.GIT, worktree));
+    }
+
+    // Cache entry is dropped when a file revision was read from changes.
+    @Test
+    void followsHeadChanges() throws Exception {
+        var repo = repo();
+        var provider = new RevisionProvider();
+        assertHead(provider, repo);
+        commit(repo, "second");
+        assertHead(provider, repo);
+        git(repo, "checkout", "-q", "-b", "branch", "HEAD~1");
+        assertHead(provider, repo);
+        git(repo, "checkout", "-q", "master");
+        assertHead(provider, repo);
+        git(repo, "reset", "-q", "--hard", "branch");
+        assertHead(provider, repo);
+    }
+
+    private static void assertHead(RevisionProvider provider, File repo) throws Exception {
+        assertEquals(git(repo, "rev-parse", "HEAD"), provider.getRevision(VCS.GIT, repo));
+    }
+
+    private File repo() throws Exception {
+        var repo = dir.resolve("repo").toFile().getCanonicalFile();
+        repo.mkdir();
+        git(repo, "init", "-q");
+        git(repo, "symbolic-ref", "HEAD", "refs/heads/master");
+        commit(repo, "first");
+        return repo;
+    }
+
+    private static void commit(File repo, String message) throws Exception {
+        git(repo, "-c", "user.name=t", "-c", "user.email=t@t",
+            "commit", "-q", "--allow-empty", "-m", message);
+    }
+
+    private static String git(File repo, String... args) throws Exception {
+        var command = new ArrayList<String>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        return new String(
+                Script.runBytes(command, repo, null /* stdin */),
+                StandardCharsets.UTF_8).trim();
+    }
+}
@@ -0,0 +1,149 @@
+package id.jred;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Output and exit code must come through the helper as if the script ran
+// on its own, with the helper reused between runs.
+final class ShellPoolTest {
+    @TempDir
+    Path dir;
+
+    private final ShellPool pool = new ShellPool(60_000);
+
+    @Test
+    void passesArgumentsVerbatim() throws Exception {
+        var script = script("args", "printf '%s\\0' \"$@\"");
+        var args = List.of(
+                "", "two words", " lead", "trail\n", "a\nb", "'\"$HOME`x`\\",
+                "*", "-e", "\u00e9\u4e2d");
+        for (int round = 0; round < 2; round++) {
+            var command = new ArrayList<String>();
+            command.add(script);
+            command.addAll(args);
+            var output = new ByteArrayOutputStream();
+            assertEquals(0, pool.run(command, dir.toFile(), output, new CompletableFuture<>()));
+            var expected = new StringBuilder();
+            for (var a : args) {
+                expected.append(a).append('\0');
+            }
+            assertEquals(expected.toString(), output.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void keepsOutputBytes() throws Exception {
+        var random = new Random(20191008);
+        var data = dir.resolve("data");
+        for (var size : new int[] {0, 1, 100, 64 * 1024 - 1, 64 * 1024, 300_000}) {
+            var bytes = new byte[size];
+            random.nextBytes(bytes);
+            for (int i = 0; i < size; i += 1 + random.nextInt(50)) {
+                bytes[i] = '\n';
+            }
+            Files.write(data, bytes);
+            assertArrayEquals(bytes, run(script("cat", "cat \"$1\""), data.toString()), "" + size);
+        }
+        for (var text : new String[] {"\n", "\n\n", "x\n", "x\n\n", "\n0\n", "\n0 0\n"}) {
+            var bytes = text.getBytes(StandardCharsets.UTF_8);
+            Files.write(data, bytes);
+            assertArrayEquals(bytes, run(script("cat", "cat \"$1\""), data.toString()));
+        }
+    }
+
+    @Test
+    void returnsExitCode() throws Exception {
+        var output = new ByteArrayOutputStream();
+        assertEquals(3, pool.run(
+                List.of(script("exit", "echo before; exit 3")),
+                dir.toFile(), output, new CompletableFuture<>()));
+        assertEquals("before\n", output.toString(StandardCharsets.UTF_8));
+
+        // Scripts run with set -e
+        output.reset();
+        assertEquals(1, pool.run(
+                List.of(script("false", "echo before >&2; false; echo after")),
+                dir.toFile(), output, new CompletableFuture<>()));
+        assertEquals("before\n", output.toString(StandardCharsets.UTF_8));
+
+        assertEquals("ok", new String(run(script("ok", "printf ok")), StandardCharsets.UTF_8));
+    }
+
+    // Script reading stdin gets nothing, rest of the request stays for the
+    // helper.
+    @Test
+    void keepsStdinForRequests() throws Exception {
+        var script = script("stdin", "cat; printf '%s' \"$1\"");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(
+                    "arg" + i,
+                    new String(run(script, "arg" + i), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void reusesHelper() throws Exception {
+        var script = script("pid", "printf '%s' $$");
+        var first = new String(run(script), StandardCharsets.UTF_8);
+        assertEquals(first, new String(run(script), StandardCharsets.UTF_8));
+        var other = dir.resolve("other").toFile();
+        other.mkdir();
+        var output = new ByteArrayOutputStream();
+        pool.run(List.of(script), other, output, new CompletableFuture<>());
+        assertNotEquals(first, output.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void killsHelperOnTimeout() throws Exception {
+        var outcome = new CompletableFuture<>();
+        var sleep = script("sleep", "echo started; sleep 60");
+        var killer = new Thread(() -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            outcome.completeExceptionally(new IOException("timeout"));
+        });
+        killer.start();
+        var start = System.nanoTime();
+        assertThrows(IOException.class, () -> pool.run(
+                List.of(sleep), dir.toFile(), new ByteArrayOutputStream(), outcome));
+        killer.join();
+        assertTrue(System.nanoTime() - start < 30_000_000_000L);
+        // Next run gets a new helper
+        assertEquals("ok", new String(run(script("ok", "printf ok")), StandardCharsets.UTF_8));
+    }
+
+    private byte[] run(String script, String... args) throws Exception {
+        var command = new ArrayList<String>();
+        command.add(script);
+        command.addAll(List.of(args));
+        var output = new ByteArrayOutputStream();
+        assertEquals(0, pool.run(command, dir.toFile(), output, new CompletableFuture<>()));
+        return output.toByteArray();
+    }
+
+    private String script(String name, String content) throws IOException {
+        var file = new File(dir.toFile(), name);
+        Files.writeString(file.toPath(), content + "\n", StandardCharsets.UTF_8);
+        return file.getPath();
+    }
+}
@@ -0,0 +1,139 @@
+package id.jred;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+final class StreamedJsonTest {
+    // Decoded string must be what Jackson makes of the same JSON.
+    @Test
+    void decodesLikeJackson() throws Exception {
+        var random = new Random(20191004);
+        for (int round = 0; round < 300; round++) {
+            var json = "{\"before\":[1,{\"x\":\"y\"}],\"diff\":" +
+                    randomJsonString(random, random.nextInt(4) == 0 ? 70_000 : 200) +
+                    ",\"after\":\"z\"}";
+            check(json, round);
+        }
+    }
+
+    @Test
+    void decodesEscapes() throws Exception {
+        for (var s : new String[] {
+            "\"\"",
+            "\"\\\"\\\\\\/\\b\\f\\n\\r\\t\"",
+            "\"\\u0000\\u007f\\u0080\\u07FF\\u0800\\uffff\"",
+            "\"\\ud83d\\ude00 \\uD83D\\uDE00\"",
+            "\"caf\u00e9 \ud83d\ude00\"",
+            // Lone surrogates
+            "\"\\ud83d\"",
+            "\"\\ud83dx\"",
+            "\"\\ude00\"",
+            "\"\\ud83d\\ud83d\\ude00\"",
+            "\"\\ud83d\\n\"",
+        }) {
+            check("{\"diff\":" + s + "}", s);
+        }
+    }
+
+    @Test
+    void readsFieldsAroundString() throws Exception {
+        var json = new StreamedJson(slow("{\"a\":1,\"diff\":\"x\\\"}\",\"b\":{\"c\":[true]}}"));
+        assertTrue(json.readUntil("diff"));
+        assertEquals(1, json.getFields().get("a").asInt());
+        var os = new ByteArrayOutputStream();
+        json.copyString(os);
+        assertEquals("x\"}", os.toString(StandardCharsets.UTF_8));
+        assertTrue(json.getFields().get("b").get("c").get(0).asBoolean());
+        assertFalse(json.getFields().has("diff"));
+    }
+
+    @Test
+    void readsAllFieldsWithoutString() throws Exception {
+        var json = new StreamedJson(bytes("{\"a\":1,\"diff\":5,\"b\":\"x\"}"));
+        assertFalse(json.readUntil("diff"));
+        assertEquals(5, json.getFields().get("diff").asInt());
+        assertEquals("x", json.getFields().get("b").asText());
+
+        json = new StreamedJson(bytes("{\"a\":1}"));
+        assertFalse(json.readUntil("diff"));
+        assertThrows(IllegalStateException.class, () -> new StreamedJson(bytes("{}"))
+                .copyString(new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void rejectsInvalidStrings() throws Exception {
+        for (var s : new String[] {"\"\\x\"", "\"\\u12g4\""}) {
+            var json = new StreamedJson(bytes("{\"diff\":" + s + "}"));
+            assertTrue(json.readUntil("diff"));
+            assertThrows(IOException.class, () -> json.copyString(new ByteArrayOutputStream()), s);
+        }
+        var json = new StreamedJson(bytes("{\"diff\":\"abc"));
+        assertTrue(json.readUntil("diff"));
+        assertThrows(EOFException.class, () -> json.copyString(new ByteArrayOutputStream()));
+        assertThrows(IOException.class, () -> new StreamedJson(bytes("[]")));
+    }
+
+    private static void check(String json, Object message) throws IOException {
+        var expected = Json.mapper.readTree(json).get("diff").asText()
+                .getBytes(StandardCharsets.UTF_8);
+        var data = json.getBytes(StandardCharsets.UTF_8);
+        for (var is : new InputStream[] {new ByteArrayInputStream(data), slow(json)}) {
+            var streamed = new StreamedJson(is);
+            assertTrue(streamed.readUntil("diff"));
+            var os = new ByteArrayOutputStream();
+            streamed.copyString(os);
+            assertArrayEquals(expected, os.toByteArray(), String.valueOf(message));
+            if (streamed.getFields().has("after")) {
+                assertEquals("z", streamed.getFields().get("after").asText());
+            }
+        }
+    }
+
+    private static String randomJsonString(Random random, int length) {
+        var sb = new StringBuilder("\"");
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(8)) {
+            case 0:
+                sb.append("\\n\\t\\\"\\\\\\/".substring(0, 2 * (1 + random.nextInt(5))));
+                break;
+            case 1:
+                sb.append(String.format("\\u%04x", random.nextInt(0x10000)));
+                break;
+            case 2:
+                sb.append("\u00e9\u4e2d\ud83d\ude00");
+                break;
+            default:
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static InputStream bytes(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Reads one byte at a time, so escapes span reads.
+    private static InputStream slow(String json) {
+        return new FilterInputStream(bytes(json)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+}